@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A typed handle for an object in the ThreadDelegated scope. Every name gets a dense
+ * slot number, which indexes the storage of each {@link ThreadDelegatedContext}.
+ * Keys for the scoped beans of an application are assigned when the scope is registered
+ * (see {@link ThreadDelegatedScopeConfiguration}), so looking up by key never hashes the name.
+ * <p>
+ * Keys live as long as the class and every root context sizes its storage to the number of slots,
+ * so names must come from a fixed set. The number of keys is capped by the {@link #MAX_KEYS_PROPERTY}
+ * system property (default {@value #DEFAULT_MAX_KEYS}), names past the cap are rejected.
+ */
+public final class ScopeKey<T>
+{
+    public static final String MAX_KEYS_PROPERTY = ScopeKey.class.getName() + ".max";
+    public static final int DEFAULT_MAX_KEYS = 4096;
+
+    private static final ConcurrentMap<String, ScopeKey<?>> KEYS = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_SLOT = new AtomicInteger();
+    private static final int MAX_KEYS = Integer.getInteger(MAX_KEYS_PROPERTY, DEFAULT_MAX_KEYS);
+
+    private final String name;
+    private final int slot;
+
+    private ScopeKey(final String name, final int slot)
+    {
+        this.name = name;
+        this.slot = slot;
+    }
+
+    /**
+     * Returns the key for the given name, assigning a new slot if the name has not been seen before.
+     *
+     * @throws IllegalStateException if the name is new and all slots are taken
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> ScopeKey<T> of(@Nonnull final String name)
+    {
+        Preconditions.checkArgument(name != null, "name must not be null!");
+        final ScopeKey<?> key = KEYS.get(name);
+        if (key != null) {
+            return (ScopeKey<T>) key;
+        }
+        return (ScopeKey<T>) KEYS.computeIfAbsent(name, n -> new ScopeKey<>(n, nextSlot(NEXT_SLOT, MAX_KEYS, n)));
+    }
+
+    /**
+     * Takes the next slot from the counter, never moving it past the cap.
+     */
+    static int nextSlot(@Nonnull final AtomicInteger counter, final int max, @Nonnull final String name)
+    {
+        final int slot = counter.getAndUpdate(s -> s < max ? s + 1 : s);
+        Preconditions.checkState(slot < max, "no slot left for '%s', all %s scope keys are taken (see %s)", name, max, MAX_KEYS_PROPERTY);
+        return slot;
+    }
+
+    /**
+     * Returns the key for the given name or null if no slot was assigned to it yet.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    static <T> ScopeKey<T> find(@Nonnull final String name)
+    {
+        Preconditions.checkArgument(name != null, "name must not be null!");
+        return (ScopeKey<T>) KEYS.get(name);
+    }
+
+    /**
+     * Number of slots assigned so far.
+     */
+    static int slotCount()
+    {
+        return NEXT_SLOT.get();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    int getSlot()
+    {
+        return slot;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ScopeKey (name: %s, slot: %d)", name, slot);
+    }
+}
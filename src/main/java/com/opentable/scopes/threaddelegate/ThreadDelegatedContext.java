@@ -13,10 +13,16 @@
  */
 package com.opentable.scopes.threaddelegate;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -24,74 +30,708 @@ import javax.annotation.Nullable;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectFactory;
+
 /**
  * This is the context object for the scope. All members of the context object can potentially
  * be shared between objects, so they should be thread safe.
+ * <p>
+ * Objects are stored in an array indexed by {@link ScopeKey} slot, lookups are lock-free.
+ * Creating a missing object through {@link #getOrCreate(ScopeKey, ObjectFactory)} is coordinated
+ * per name: concurrent requests for the same name wait for a single creation, other names are
+ * not held up by it.
+ * <p>
+ * No monitors are used: writes are compare-and-set, and waiting for a creation parks the thread.
+ * A virtual thread blocking in a factory therefore does not pin its carrier thread.
+ * <p>
+ * A context created with {@link #fork()} reads through to its parent, but keeps everything
+ * written to it to itself. Forking is O(1): the child starts out empty and only allocates storage
+ * for the objects it overrides. Subtasks of a fan-out can each work in a child, without writing
+ * to the context they share.
+ * <p>
+ * A {@link #snapshot()} is a read-only view of a context. It shares the arrays of the context it
+ * was taken from, so it is as cheap to take as a field read, and can be read from any number of
+ * threads without coordination.
+ * <p>
+ * Besides ENTER and LEAVE on every thread switch, {@link LifecycleListener}s hear about the life
+ * of the context itself: CREATE once when they are put into it, FORK whenever a child is forked
+ * from it and DESTROY once when the context is destroyed.
+ * <p>
+ * A context counts the threads it is bound to, and the queued tasks that {@link #retain() retain} it.
+ * Once it is {@link #end() ended} and the last of them has left, it is destroyed: DESTROY is sent and the destruction callbacks of its objects
+ * run, on the thread that left last. A thread bound to a fork keeps the parents alive as well, a
+ * thread bound to a snapshot the context it was taken from.
+ * <p>
+ * A destroyed context drops its objects and listeners. A thread that binds it afterwards finds it
+ * empty, and whatever it creates there is destroyed once it leaves again. A snapshot of it bound
+ * afterwards is empty as well, so looking up objects there fails.
+ * <p>
+ * Listeners are kept per event, according to {@link ScopeListener#getSubscribedEvents()}.
+ * Dispatching an event only walks the listeners that subscribed to it.
  */
 public class ThreadDelegatedContext
 {
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadDelegatedContext.class);
+
     private static final String NULL_NAME = "name must not be null!";
+    private static final String NULL_KEY = "key must not be null!";
+    private static final String READ_ONLY = "context snapshot is read-only";
 
     public static final String SCOPE_THREAD_DELEGATED = "thread_delegated";
 
-    private final Map<String, Object> contents = new HashMap<>();
-    private final Set<ScopeListener> listeners = new HashSet<>();
+    /** Stands in for {@code null} values, an empty slot is {@code null}. */
+    private static final Object NULL_VALUE = new Object();
+
+    /** Shared by all contexts that do not hold any objects yet. */
+    private static final Object[] EMPTY = new Object[0];
+    private static final ScopeListener[] NONE = new ScopeListener[0];
+    private static final Destruction[] NO_DESTRUCTIONS = new Destruction[0];
+
+    private static final int LIVE = 0;
+    private static final int ENDED = 1;
+    private static final int DESTROYED = 2;
+
+    /** Listeners per event, indexed by ordinal. Shared by all contexts without listeners. */
+    private static final ScopeListener[][] NO_LISTENERS = new ScopeListener[ScopeEvent.values().length][];
+
+    static {
+        Arrays.fill(NO_LISTENERS, NONE);
+    }
+
+    private static final AtomicReferenceFieldUpdater<ThreadDelegatedContext, Object[]> VALUES_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(ThreadDelegatedContext.class, Object[].class, "values");
+    private static final AtomicReferenceFieldUpdater<ThreadDelegatedContext, ScopeListener[][]> LISTENERS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(ThreadDelegatedContext.class, ScopeListener[][].class, "listeners");
+    private static final AtomicReferenceFieldUpdater<ThreadDelegatedContext, ScopeListener[][]> LAZY_LISTENERS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(ThreadDelegatedContext.class, ScopeListener[][].class, "lazyListeners");
+    private static final AtomicReferenceFieldUpdater<ThreadDelegatedContext, Destruction[]> DESTRUCTIONS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(ThreadDelegatedContext.class, Destruction[].class, "destructions");
+    private static final AtomicIntegerFieldUpdater<ThreadDelegatedContext> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(ThreadDelegatedContext.class, "state");
+    private static final AtomicIntegerFieldUpdater<ThreadDelegatedContext> REFERENCES_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(ThreadDelegatedContext.class, "references");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ThreadDelegatedContext, ConcurrentMap> CREATIONS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(ThreadDelegatedContext.class, ConcurrentMap.class, "creations");
+
+    /**
+     * The objects in this context, indexed by {@link ScopeKey} slot. The array is never modified
+     * once published; every write replaces it with an updated copy. Writes only happen when an
+     * object is created, so lookups are a single volatile read.
+     */
+    private volatile Object[] values = EMPTY;
+
+    /** Objects missing here are looked up in the parent, null for a root context. */
+    private final ThreadDelegatedContext parent;
+
+    private final boolean snapshot;
+
+    /** The context a snapshot was taken from, which threads bound to the snapshot keep alive. */
+    private final ThreadDelegatedContext source;
+
+    /** Created on the first miss. */
+    private volatile ConcurrentMap<ScopeKey<?>, Creation> creations;
 
+    /**
+     * Listeners are read on every thread switch but only written when a listener is put
+     * into the context, so they are kept in copy-on-write arrays as well, one per event.
+     */
+    private volatile ScopeListener[][] listeners = NO_LISTENERS;
+
+    /** ENTER and LEAVE of {@link LazyScopeListener}s, which only hear about threads that access the scope. */
+    private volatile ScopeListener[][] lazyListeners = NO_LISTENERS;
+
+    /** Destruction callbacks in the order they were registered. */
+    private volatile Destruction[] destructions = NO_DESTRUCTIONS;
+
+    /** {@link #LIVE}, {@link #ENDED} or {@link #DESTROYED}, only ever moves forward. */
+    private volatile int state = LIVE;
+
+    /** One for every thread bound to the context or one of its forks, plus one until the context is ended. */
+    private volatile int references = 1;
+
+    /**
+     * A new context does not allocate any storage until the first object is put into it.
+     */
     ThreadDelegatedContext()
     {
+        this(null);
+    }
+
+    private ThreadDelegatedContext(@Nullable final ThreadDelegatedContext parent)
+    {
+        this.parent = parent;
+        this.snapshot = false;
+        this.source = this;
+    }
+
+    private ThreadDelegatedContext(final ThreadDelegatedContext source, @Nullable final ThreadDelegatedContext parent, final Object[] values,
+                                   final ScopeListener[][] listeners, final ScopeListener[][] lazyListeners)
+    {
+        this.parent = parent;
+        this.snapshot = true;
+        this.source = source;
+        this.values = values;
+        this.listeners = listeners;
+        this.lazyListeners = lazyListeners;
     }
 
-    synchronized boolean containsKey(@Nonnull final String name)
+    /**
+     * Returns a new context that sees all objects of this context, including ones added to it
+     * later. Objects created or put in the child stay in the child and override the ones of
+     * this context; removing them from the child uncovers the parent's object again. Listeners
+     * of this context are notified when a thread enters or leaves the child as well.
+     * <p>
+     * Nothing is copied, the cost does not depend on the number of objects in this context.
+     * {@link LifecycleListener}s of this context and its parents receive a FORK event.
+     */
+    public ThreadDelegatedContext fork()
+    {
+        final ThreadDelegatedContext child = new ThreadDelegatedContext(this);
+        for (ThreadDelegatedContext context = this; context != null; context = context.parent) {
+            context.lifecycleEvent(ScopeEvent.FORK);
+        }
+        return child;
+    }
+
+    /**
+     * Returns a read-only view of the objects and listeners of this context (and its parents)
+     * as they are now. Later changes to this context do not show in the snapshot.
+     * <p>
+     * Nothing is copied: all arrays of the context are immutable once published, so the snapshot
+     * just shares them. Looking up an object that is missing from the snapshot, or writing to it,
+     * fails with an {@link IllegalStateException}; {@link #fork()} a snapshot to get a writable view.
+     */
+    public ThreadDelegatedContext snapshot()
+    {
+        if (snapshot) {
+            return this;
+        }
+        return new ThreadDelegatedContext(this, parent == null ? null : parent.snapshot(), values, listeners, lazyListeners);
+    }
+
+    public boolean isSnapshot()
+    {
+        return snapshot;
+    }
+
+    @Nullable
+    public ThreadDelegatedContext getParent()
+    {
+        return parent;
+    }
+
+    /**
+     * Ends this context, e.g. because the request owning it is done. If no thread is bound to it
+     * any more, it is destroyed right away, otherwise by the last thread that leaves it. Only the
+     * first call has an effect. Ending a fork does not end its parents.
+     */
+    public void end()
+    {
+        Preconditions.checkState(!snapshot, READ_ONLY);
+        if (STATE_UPDATER.compareAndSet(this, LIVE, ENDED)) {
+            dereference();
+        }
+    }
+
+    public boolean isEnded()
+    {
+        return state != LIVE;
+    }
+
+    public boolean isDestroyed()
+    {
+        return state == DESTROYED;
+    }
+
+    /**
+     * Registers a callback to run when the context is destroyed. Callbacks run in the order they were
+     * registered; removing the object with the given name from the context drops its callback.
+     */
+    void registerDestructionCallback(@Nonnull final String name, @Nonnull final Runnable callback)
     {
         Preconditions.checkArgument(name != null, NULL_NAME);
-        return contents.containsKey(name);
+        Preconditions.checkArgument(callback != null, "callback must not be null!");
+        Preconditions.checkState(!snapshot, READ_ONLY);
+        while (true) {
+            final Destruction[] current = destructions;
+            final Destruction[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = new Destruction(name, callback);
+            if (DESTRUCTIONS_UPDATER.compareAndSet(this, current, updated)) {
+                return;
+            }
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    synchronized <T> T get(final String name)
+    /**
+     * Keeps this context (and the parents of a fork) from being destroyed until {@link #release()},
+     * e.g. while a task that is to run in it waits in a queue. Retaining a snapshot retains the
+     * context it was taken from.
+     */
+    public void retain()
+    {
+        for (ThreadDelegatedContext context = source; context != null; context = context.parent) {
+            REFERENCES_UPDATER.incrementAndGet(context);
+        }
+    }
+
+    /**
+     * Gives up a reference taken by {@link #retain()}. Once the context has ended, the last
+     * reference to go destroys it, on the calling thread.
+     */
+    public void release()
+    {
+        for (ThreadDelegatedContext context = source; context != null; context = context.parent) {
+            context.dereference();
+        }
+    }
+
+    /**
+     * A thread was bound to this context. Binding a context that was destroyed already is legal,
+     * but the objects the thread expects to find there are gone, so it is logged.
+     */
+    void bind()
+    {
+        retain();
+        if (snapshot) {
+            // A snapshot still shares the arrays of its context, which may have been destroyed since.
+            for (ThreadDelegatedContext view = this; view != null; view = view.parent) {
+                if (view.source.state == DESTROYED) {
+                    view.values = EMPTY;
+                    view.listeners = NO_LISTENERS;
+                    view.lazyListeners = NO_LISTENERS;
+                }
+            }
+        }
+        if (source.state == DESTROYED) {
+            LOG.warn("Thread '{}' bound to a context that was destroyed already", Thread.currentThread().getName());
+        }
+    }
+
+    /**
+     * A thread left this context. The last thread to leave an ended context destroys it.
+     */
+    void unbind()
+    {
+        release();
+    }
+
+    private void dereference()
+    {
+        // A destroyed context is destroyed again whenever a late thread leaves it, to clean up after that thread.
+        if (REFERENCES_UPDATER.decrementAndGet(this) == 0 && state != LIVE) {
+            destroy();
+        }
+    }
+
+    private void destroy()
+    {
+        state = DESTROYED;
+        lifecycleEvent(ScopeEvent.DESTROY);
+        // Callbacks may look up other objects of the context, and create new ones that need destroying as well.
+        Destruction[] current;
+        while ((current = DESTRUCTIONS_UPDATER.getAndSet(this, NO_DESTRUCTIONS)).length > 0) {
+            for (final Destruction destruction : current) {
+                try {
+                    destruction.callback.run();
+                }
+                catch (RuntimeException e) {
+                    // The thread leaving is not to blame, and the other objects still need to be destroyed.
+                    LOG.warn("Destruction callback for '{}' failed", destruction.name, e);
+                }
+            }
+        }
+        // Lifecycle listeners are dropped along with the other objects, so each hears DESTROY only once.
+        listeners = NO_LISTENERS;
+        lazyListeners = NO_LISTENERS;
+        values = EMPTY;
+    }
+
+    boolean containsKey(@Nonnull final String name)
+    {
+        Preconditions.checkArgument(name != null, NULL_NAME);
+        final ScopeKey<?> key = ScopeKey.find(name);
+        return key != null && contains(key);
+    }
+
+    boolean contains(@Nonnull final ScopeKey<?> key)
+    {
+        Preconditions.checkArgument(key != null, NULL_KEY);
+        return slotValue(key) != null || parentValue(key) != null;
+    }
+
+    <T> T get(final String name)
     {
         Preconditions.checkArgument(name != null, NULL_NAME);
-        return (T) contents.get(name);
+        final ScopeKey<T> key = ScopeKey.find(name);
+        return key == null ? null : lookup(key);
+    }
+
+    <T> T lookup(@Nonnull final ScopeKey<T> key)
+    {
+        Preconditions.checkArgument(key != null, NULL_KEY);
+        final Object value = slotValue(key);
+        return unmask(value != null ? value : parentValue(key));
+    }
+
+    /**
+     * Returns the object with the given name. If it is not present yet, it is created
+     * using the unscoped factory and stored in the context.
+     */
+    <T> T getOrCreate(@Nonnull final String name, @Nonnull final ObjectFactory<? extends T> unscoped)
+    {
+        return getOrCreate(ScopeKey.of(name), unscoped);
+    }
+
+    /**
+     * Returns the object for the given key. If it is not present yet, it is created
+     * using the unscoped factory and stored in the context. A hit neither locks nor allocates.
+     */
+    <T> T getOrCreate(@Nonnull final ScopeKey<T> key, @Nonnull final ObjectFactory<? extends T> unscoped)
+    {
+        Preconditions.checkArgument(key != null, NULL_KEY);
+        final Object value = slotValue(key);
+        if (value != null) {
+            return unmask(value);
+        }
+        final Object inherited = parentValue(key);
+        if (inherited != null) {
+            return unmask(inherited);
+        }
+        return create(key, unscoped);
     }
 
-    synchronized void put(@Nonnull final String name, @Nullable final Object value)
+    private <T> T create(final ScopeKey<T> key, final ObjectFactory<? extends T> unscoped)
+    {
+        Preconditions.checkState(!snapshot, READ_ONLY);
+        final Creation creation = new Creation();
+        final ConcurrentMap<ScopeKey<?>, Creation> creations = creations();
+        final Creation inFlight = creations.putIfAbsent(key, creation);
+        if (inFlight != null) {
+            // Some other thread is already creating this object, wait for it.
+            return unmask(inFlight.await(key));
+        }
+
+        try {
+            // The creation may have completed between the lookup and registering this creation.
+            Object existing = slotValue(key);
+            if (existing == null) {
+                existing = parentValue(key);
+            }
+            if (existing != null) {
+                creation.result.complete(existing);
+                return unmask(existing);
+            }
+
+            final T created = unscoped.getObject();
+            set(key, created);
+            creation.result.complete(mask(created));
+            return created;
+        }
+        catch (RuntimeException | Error e) {
+            creation.result.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            creations.remove(key, creation);
+        }
+    }
+
+    void put(@Nonnull final String name, @Nullable final Object value)
     {
         Preconditions.checkArgument(name != null, NULL_NAME);
-        contents.put(name, value);
+        set(ScopeKey.of(name), value);
+    }
+
+    <T> void set(@Nonnull final ScopeKey<T> key, @Nullable final T value)
+    {
+        Preconditions.checkArgument(key != null, NULL_KEY);
+        store(key, mask(value));
 
         if (value instanceof ScopeListener) {
             final ScopeListener listener = ScopeListener.class.cast(value);
-            listeners.add(listener);
+            // The subscription is read once, it decides which arrays the listener goes into.
+            final Set<ScopeEvent> subscribed = EnumSet.noneOf(ScopeEvent.class);
+            subscribed.addAll(listener.getSubscribedEvents());
+            final Set<ScopeEvent> events = EnumSet.copyOf(subscribed);
+            if (listener instanceof LazyScopeListener) {
+                // A lazy listener hears about thread switches from the scope, once a thread uses it.
+                final Set<ScopeEvent> threadEvents = EnumSet.copyOf(subscribed);
+                threadEvents.retainAll(ScopeListener.THREAD_EVENTS);
+                addListener(LAZY_LISTENERS_UPDATER, listener, threadEvents);
+                events.removeAll(ScopeListener.THREAD_EVENTS);
+            }
+            // One-time setup goes first, a listener put into the context twice is only created once.
+            if (addListener(LISTENERS_UPDATER, listener, events) && events.contains(ScopeEvent.CREATE)) {
+                listener.event(ScopeEvent.CREATE, null);
+            }
             // Send an "enter" event to notify the listener that it was put in scope.
-            listener.event(ScopeEvent.ENTER);
+            if (subscribed.contains(ScopeEvent.ENTER)) {
+                listener.event(ScopeEvent.ENTER, null);
+            }
         }
     }
 
-    @SuppressWarnings("unchecked")
-    synchronized <T> T remove(@Nonnull final String name)
+    <T> T remove(@Nonnull final String name)
     {
         Preconditions.checkArgument(name != null, NULL_NAME);
-        return (T) contents.remove(name);
+        final ScopeKey<T> key = ScopeKey.find(name);
+        return key == null ? null : delete(key);
+    }
+
+    <T> T delete(@Nonnull final ScopeKey<T> key)
+    {
+        Preconditions.checkArgument(key != null, NULL_KEY);
+        final T removed = unmask(store(key, null));
+        if (destructions.length > 0) {
+            removeDestructionCallback(key.getName());
+        }
+        return removed;
+    }
+
+    private void removeDestructionCallback(final String name)
+    {
+        while (true) {
+            final Destruction[] current = destructions;
+            final Destruction[] updated = Arrays.stream(current).filter(d -> !d.name.equals(name)).toArray(Destruction[]::new);
+            if (updated.length == current.length || DESTRUCTIONS_UPDATER.compareAndSet(this, current, updated)) {
+                return;
+            }
+        }
     }
 
     @VisibleForTesting
-    synchronized void clear()
+    void clear()
     {
-        event(ScopeEvent.LEAVE);
-        listeners.clear();
-        contents.clear();
+        Preconditions.checkState(!snapshot, READ_ONLY);
+        // Only the listeners of this context are gone, the parent's stay in place.
+        for (final ScopeListener listener : listeners[ScopeEvent.LEAVE.ordinal()]) {
+            listener.event(ScopeEvent.LEAVE, null);
+        }
+        for (final ScopeListener listener : lazyListeners[ScopeEvent.LEAVE.ordinal()]) {
+            listener.event(ScopeEvent.LEAVE, null);
+        }
+        listeners = NO_LISTENERS;
+        lazyListeners = NO_LISTENERS;
+        destructions = NO_DESTRUCTIONS;
+        values = EMPTY;
     }
 
     @VisibleForTesting
-    synchronized int size()
+    int size()
+    {
+        int size = 0;
+        for (Object value : values) {
+            if (value != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    void event(final ScopeEvent event)
     {
-        return contents.size();
+        event(event, null);
     }
 
-    synchronized void event(final ScopeEvent event)
+    /**
+     * Sends an event to the listeners of this context and its parents, with the context the thread
+     * moves to next for LEAVE.
+     */
+    void event(final ScopeEvent event, @Nullable final ThreadDelegatedContext next)
     {
-        for (ScopeListener listener: listeners) {
-            listener.event(event);
+        final ScopeListener[] current = listeners[event.ordinal()];
+        for (int i = 0; i < current.length; i++) {
+            current[i].event(event, next);
+        }
+        if (parent != null) {
+            parent.event(event, next);
+        }
+    }
+
+    /**
+     * Sends an event to the {@link LazyScopeListener}s of this context and its parents.
+     */
+    void lazyEvent(final ScopeEvent event, @Nullable final ThreadDelegatedContext next)
+    {
+        final ScopeListener[] current = lazyListeners[event.ordinal()];
+        for (int i = 0; i < current.length; i++) {
+            current[i].event(event, next);
+        }
+        if (parent != null) {
+            parent.lazyEvent(event, next);
+        }
+    }
+
+    /**
+     * Sends an event to the {@link LifecycleListener}s of this context only.
+     */
+    private void lifecycleEvent(final ScopeEvent event)
+    {
+        final ScopeListener[] current = listeners[event.ordinal()];
+        for (int i = 0; i < current.length; i++) {
+            current[i].event(event, null);
+        }
+    }
+
+    boolean hasLazyListeners()
+    {
+        for (ThreadDelegatedContext context = this; context != null; context = context.parent) {
+            final ScopeListener[][] lazy = context.lazyListeners;
+            if (lazy[ScopeEvent.ENTER.ordinal()].length > 0 || lazy[ScopeEvent.LEAVE.ordinal()].length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the listener to the arrays behind the updater for the given events.
+     * Returns false if it was in all of them already.
+     */
+    private boolean addListener(final AtomicReferenceFieldUpdater<ThreadDelegatedContext, ScopeListener[][]> updater, final ScopeListener listener,
+                                final Set<ScopeEvent> events)
+    {
+        while (true) {
+            final ScopeListener[][] current = updater.get(this);
+            final ScopeListener[][] updated = current.clone();
+            boolean added = false;
+            for (final ScopeEvent event : events) {
+                if (!contains(current[event.ordinal()], listener)) {
+                    final ScopeListener[] forEvent = current[event.ordinal()];
+                    updated[event.ordinal()] = Arrays.copyOf(forEvent, forEvent.length + 1);
+                    updated[event.ordinal()][forEvent.length] = listener;
+                    added = true;
+                }
+            }
+            if (!added) {
+                return false;
+            }
+            if (updater.compareAndSet(this, current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean contains(final ScopeListener[] listeners, final ScopeListener listener)
+    {
+        for (final ScopeListener existing : listeners) {
+            if (existing.equals(listener)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ConcurrentMap<ScopeKey<?>, Creation> creations()
+    {
+        final ConcurrentMap<ScopeKey<?>, Creation> current = creations;
+        if (current != null) {
+            return current;
+        }
+        CREATIONS_UPDATER.compareAndSet(this, null, new ConcurrentHashMap<>());
+        return creations;
+    }
+
+    @Nullable
+    private Object slotValue(final ScopeKey<?> key)
+    {
+        final Object[] current = values;
+        final int slot = key.getSlot();
+        return slot < current.length ? current[slot] : null;
+    }
+
+    /**
+     * Looks the key up in the ancestors of this context.
+     */
+    @Nullable
+    private Object parentValue(final ScopeKey<?> key)
+    {
+        for (ThreadDelegatedContext ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+            final Object value = ancestor.slotValue(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the slot of the key to the given (masked) value and returns the previous one.
+     */
+    @Nullable
+    private Object store(final ScopeKey<?> key, @Nullable final Object value)
+    {
+        Preconditions.checkState(!snapshot, READ_ONLY);
+        final int slot = key.getSlot();
+        while (true) {
+            final Object[] current = values;
+            if (value == null && slot >= current.length) {
+                return null;
+            }
+            // Grow a root context to cover all known keys, so later keys do not need another resize.
+            // A child usually overrides a few objects only, so it grows just as far as needed.
+            final int length = Math.max(current.length, parent == null ? Math.max(slot + 1, ScopeKey.slotCount()) : slot + 1);
+            final Object[] updated = Arrays.copyOf(current, length);
+            final Object previous = updated[slot];
+            updated[slot] = value;
+            if (VALUES_UPDATER.compareAndSet(this, current, updated)) {
+                return previous;
+            }
+        }
+    }
+
+    private static Object mask(@Nullable final Object value)
+    {
+        return value == null ? NULL_VALUE : value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T unmask(final Object value)
+    {
+        return value == NULL_VALUE ? null : (T) value;
+    }
+
+    private static final class Destruction
+    {
+        private final String name;
+        private final Runnable callback;
+
+        Destruction(final String name, final Runnable callback)
+        {
+            this.name = name;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * An object creation in flight. Threads asking for the same name while it runs wait for its result.
+     */
+    private static final class Creation
+    {
+        private final Thread owner = Thread.currentThread();
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        Object await(final ScopeKey<?> key)
+        {
+            Preconditions.checkState(owner != Thread.currentThread(), "circular creation of '%s'", key.getName());
+            try {
+                return result.join();
+            }
+            catch (CompletionException e) {
+                // Hand the failure of the creating thread to all waiting threads.
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
         }
     }
 
@@ -101,12 +741,70 @@ public class ThreadDelegatedContext
      */
     public interface ScopeListener
     {
+        Set<ScopeEvent> THREAD_EVENTS = Collections.unmodifiableSet(EnumSet.of(ScopeEvent.ENTER, ScopeEvent.LEAVE));
+        Set<ScopeEvent> ALL_EVENTS = Collections.unmodifiableSet(EnumSet.allOf(ScopeEvent.class));
+
         void event(ScopeEvent event);
+
+        /**
+         * Receives the events of the context. For LEAVE, {@code next} is the context the thread
+         * moves to, or null if it leaves for none; a listener can switch straight over to it rather
+         * than tearing down first. Null for every other event.
+         */
+        default void event(ScopeEvent event, @Nullable ThreadDelegatedContext next)
+        {
+            event(event);
+        }
+
+        /**
+         * The events this listener receives. Read once when the listener is put into a context,
+         * other events never reach it. A listener that only cleans up can subscribe to DESTROY
+         * and is not called on thread switches at all.
+         */
+        default Set<ScopeEvent> getSubscribedEvents()
+        {
+            return THREAD_EVENTS;
+        }
+    }
+
+    /**
+     * A listener that is only told about threads that actually use the scope. A thread entering
+     * the context sends ENTER to it on the first scoped object lookup, or on
+     * {@link ThreadDelegatedScope#activate()}, rather than when the context is bound. A thread
+     * that never got that far leaves without sending LEAVE.
+     * <p>
+     * Useful for listeners that do expensive work on ENTER, while most thread hops run tasks that
+     * never look at the scope.
+     */
+    public interface LazyScopeListener extends ScopeListener
+    {
+    }
+
+    /**
+     * A listener that hears about the life of the context as well as thread switches. Expensive
+     * setup belongs on CREATE and teardown on DESTROY, so that ENTER and LEAVE only do per-hop work.
+     * Other listeners only see the lifecycle events they {@link #getSubscribedEvents() subscribe} to.
+     */
+    public interface LifecycleListener extends ScopeListener
+    {
+        @Override
+        default Set<ScopeEvent> getSubscribedEvents()
+        {
+            return ALL_EVENTS;
+        }
     }
 
     public enum ScopeEvent
     {
+        /** A thread starts working in the context. */
         ENTER,
-        LEAVE;
+        /** A thread stops working in the context. */
+        LEAVE,
+        /** The listener was put into the context, sent once before the first ENTER. */
+        CREATE,
+        /** The context was ended and the last thread left it, sent once. */
+        DESTROY,
+        /** A child context was forked from the context. */
+        FORK;
     }
 }
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Binds a {@link ThreadDelegatedContext} to the current thread. The scope delegates all
+ * thread binding to an implementation of this interface.
+ * <p>
+ * The storage of {@link ThreadDelegatedScope#SCOPE} is picked when the class is loaded from the
+ * system property named like this interface: {@code threadlocal} (the default),
+ * {@code inheritable} or the class name of an implementation with a public no-argument constructor.
+ */
+public interface ThreadDelegatedContextStorage
+{
+    String STORAGE_PROPERTY = ThreadDelegatedContextStorage.class.getName();
+
+    String THREAD_LOCAL = "threadlocal";
+    String INHERITABLE_THREAD_LOCAL = "inheritable";
+
+    /**
+     * Returns the context bound to the current thread, or null.
+     */
+    @Nullable
+    ThreadDelegatedContext get();
+
+    /**
+     * Binds the context to the current thread, replacing any previous binding.
+     */
+    void set(@Nonnull ThreadDelegatedContext context);
+
+    /**
+     * Removes the binding of the current thread.
+     */
+    void remove();
+
+    /**
+     * Returns true if the context of the current thread was inherited from another thread rather than
+     * {@link #set(ThreadDelegatedContext) set} on this one. Such a binding is not counted by the context,
+     * plain threads may never leave it.
+     */
+    default boolean isInherited()
+    {
+        return false;
+    }
+
+    /**
+     * One context per thread, not visible to any other thread. Uses the field of a
+     * {@link ThreadDelegatedThread} when running on one.
+     */
+    static ThreadDelegatedContextStorage threadLocal()
+    {
+        return new ThreadLocalContextStorage(new ThreadLocal<>(), true);
+    }
+
+    /**
+     * Threads started from a thread with a context see that context until they change their scope.
+     * Inheriting does not send any scope events, and an inherited binding does not keep the context alive.
+     */
+    static ThreadDelegatedContextStorage inheritableThreadLocal()
+    {
+        return new ThreadLocalContextStorage(new InheritableThreadLocal<>(), false);
+    }
+
+    /**
+     * Returns the storage configured through the {@link #STORAGE_PROPERTY} system property.
+     */
+    static ThreadDelegatedContextStorage fromSystemProperties()
+    {
+        return forName(System.getProperty(STORAGE_PROPERTY, THREAD_LOCAL));
+    }
+
+    static ThreadDelegatedContextStorage forName(@Nonnull final String name)
+    {
+        Preconditions.checkArgument(name != null, "name must not be null!");
+        switch (name) {
+            case THREAD_LOCAL:
+                return threadLocal();
+            case INHERITABLE_THREAD_LOCAL:
+                return inheritableThreadLocal();
+            default:
+                try {
+                    return Class.forName(name).asSubclass(ThreadDelegatedContextStorage.class).getConstructor().newInstance();
+                }
+                catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new IllegalArgumentException(String.format("Can not create context storage '%s'", name), e);
+                }
+        }
+    }
+}
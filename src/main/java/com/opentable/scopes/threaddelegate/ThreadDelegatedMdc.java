@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+import org.slf4j.MDC;
+import org.slf4j.spi.MDCAdapter;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext.ScopeListener;
+
+/**
+ * Keeps the SLF4J MDC of a thread in line with the context it is in. Values put here follow the
+ * context to every thread that enters it, and are gone from threads that leave it:
+ * <pre>
+ * ThreadDelegatedMdc.current().put("requestId", requestId);
+ * </pre>
+ * Each context holds an immutable map of its values. Every thread remembers the map it installed
+ * into its MDC last, so entering a context whose map is already installed costs a single comparison.
+ * Moving between two contexts only touches the keys that differ. MDC keys that were not put
+ * through this class are left alone.
+ */
+public final class ThreadDelegatedMdc implements ScopeListener
+{
+    private static final ScopeKey<ThreadDelegatedMdc> KEY = ScopeKey.of(ThreadDelegatedMdc.class.getName());
+
+    /** The map this class installed into the MDC of the current thread. */
+    private static final ThreadLocal<Map<String, String>> INSTALLED = new ThreadLocal<>();
+
+    private final ThreadDelegatedScope scope;
+    private final MDCAdapter mdc;
+    private final AtomicReference<ImmutableMap<String, String>> values = new AtomicReference<>(ImmutableMap.of());
+
+    private ThreadDelegatedMdc(final ThreadDelegatedScope scope, final MDCAdapter mdc)
+    {
+        this.scope = scope;
+        this.mdc = mdc;
+    }
+
+    /**
+     * Returns the MDC values of the current context of the global scope, creating the context if needed.
+     */
+    public static ThreadDelegatedMdc current()
+    {
+        return current(ThreadDelegatedScope.SCOPE);
+    }
+
+    public static ThreadDelegatedMdc current(final ThreadDelegatedScope scope)
+    {
+        return current(scope, MDC.getMDCAdapter());
+    }
+
+    @VisibleForTesting
+    static ThreadDelegatedMdc current(final ThreadDelegatedScope scope, final MDCAdapter mdc)
+    {
+        Preconditions.checkArgument(scope != null, "scope must not be null!");
+        return scope.get(KEY, () -> new ThreadDelegatedMdc(scope, mdc));
+    }
+
+    public void put(@Nonnull final String key, @Nullable final String value)
+    {
+        Preconditions.checkArgument(key != null, "key must not be null!");
+        ImmutableMap<String, String> current;
+        ImmutableMap<String, String> updated;
+        do {
+            current = values.get();
+            if (Objects.equals(current.get(key), value)) {
+                return;
+            }
+            final ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+            for (final Map.Entry<String, String> entry : current.entrySet()) {
+                if (!entry.getKey().equals(key)) {
+                    builder.put(entry);
+                }
+            }
+            if (value != null) {
+                builder.put(key, value);
+            }
+            updated = builder.build();
+        } while (!values.compareAndSet(current, updated));
+        refresh();
+    }
+
+    public void remove(@Nonnull final String key)
+    {
+        put(key, null);
+    }
+
+    @Nullable
+    public String get(@Nonnull final String key)
+    {
+        return values.get().get(key);
+    }
+
+    public Map<String, String> getValues()
+    {
+        return values.get();
+    }
+
+    @Override
+    public void event(final ScopeEvent event)
+    {
+        event(event, null);
+    }
+
+    @Override
+    public void event(final ScopeEvent event, @Nullable final ThreadDelegatedContext next)
+    {
+        if (event == ScopeEvent.ENTER) {
+            install(mdc, values.get());
+        }
+        else {
+            // Switch straight to the values of the context the thread goes to next.
+            install(mdc, valuesOf(next));
+        }
+    }
+
+    /**
+     * Brings the MDC of the current thread up to date if the thread is in the context of this map.
+     */
+    private void refresh()
+    {
+        final ThreadDelegatedContext context = scope.peekContext();
+        if (context != null && context.lookup(KEY) == this) {
+            install(mdc, values.get());
+        }
+    }
+
+    private static Map<String, String> valuesOf(@Nullable final ThreadDelegatedContext context)
+    {
+        final ThreadDelegatedMdc next = context == null ? null : context.lookup(KEY);
+        return next == null ? ImmutableMap.of() : next.values.get();
+    }
+
+    private static void install(final MDCAdapter mdc, final Map<String, String> target)
+    {
+        final Map<String, String> installed = INSTALLED.get();
+        if (installed == target) {
+            return;
+        }
+        if (installed != null) {
+            for (final Map.Entry<String, String> entry : installed.entrySet()) {
+                if (!target.containsKey(entry.getKey())) {
+                    mdc.remove(entry.getKey());
+                }
+            }
+        }
+        for (final Map.Entry<String, String> entry : target.entrySet()) {
+            if (installed == null || !entry.getValue().equals(installed.get(entry.getKey()))) {
+                mdc.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (target.isEmpty()) {
+            INSTALLED.remove();
+        }
+        else {
+            INSTALLED.set(target);
+        }
+    }
+}
@@ -29,62 +29,161 @@ import com.opentable.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
  */
 public class ThreadDelegatedScope implements Scope
 {
-    private final ThreadLocal<ThreadDelegatedContext> threadLocal;
+    private final ThreadDelegatedContextStorage storage;
 
-    /** The global scope object to bind. This is created at load time of this class. */
-    public static final ThreadDelegatedScope SCOPE = new ThreadDelegatedScope();
+    /** The context whose lazy listeners were sent ENTER on this thread. */
+    private final ThreadLocal<ThreadDelegatedContext> activated = new ThreadLocal<>();
+
+    /**
+     * The global scope object to bind. This is created at load time of this class,
+     * using the storage configured in the system properties.
+     */
+    public static final ThreadDelegatedScope SCOPE = new ThreadDelegatedScope(ThreadDelegatedContextStorage.fromSystemProperties());
 
     ThreadDelegatedScope()
     {
-        this.threadLocal = new ThreadLocal<>();
+        this(ThreadDelegatedContextStorage.threadLocal());
+    }
+
+    ThreadDelegatedScope(final ThreadDelegatedContextStorage storage)
+    {
+        Preconditions.checkArgument(storage != null, "storage must not be null!");
+        this.storage = storage;
     }
 
     /**
      * Returns the context (the set of objects bound to the scope) for the current thread.
-     * A context may be shared by multiple threads.
+     * A context may be shared by multiple threads. If the thread has no context yet, a new
+     * one is created and bound; use {@link #peekContext()} to avoid that.
      */
     public ThreadDelegatedContext getContext()
     {
-        ThreadDelegatedContext context = threadLocal.get();
+        ThreadDelegatedContext context = storage.get();
         if (context == null) {
             context = new ThreadDelegatedContext();
-            threadLocal.set(context);
+            storage.set(context);
+            context.bind();
         }
         return context;
     }
 
+    /**
+     * Creates a new, empty context without binding it to any thread. Use {@link #changeScope(ThreadDelegatedContext)}
+     * to enter it.
+     */
+    public ThreadDelegatedContext newContext()
+    {
+        return new ThreadDelegatedContext();
+    }
+
+    /**
+     * Returns the context for the current thread, or null if none was bound or created yet.
+     * Unlike {@link #getContext()} this never creates a context.
+     */
+    @Nullable
+    public ThreadDelegatedContext peekContext()
+    {
+        return storage.get();
+    }
+
     /**
      * A thread enters the scope. Clear the current context. If a new context
      * was given, assign it to the scope, otherwise leave it empty.
+     * <p>
+     * Listeners of the old context see LEAVE while the thread is still in it. If this thread was the
+     * last one in an {@link ThreadDelegatedContext#end() ended} context, the old context is destroyed here,
+     * before the thread leaves it, so destruction callbacks still find the other objects of the context.
      */
     public void changeScope(@Nullable final ThreadDelegatedContext context)
     {
-        final ThreadDelegatedContext oldContext = threadLocal.get();
+        final ThreadDelegatedContext oldContext = storage.get();
+        if (oldContext == context) {
+            // If the context gets exchanged with itself, do nothing.
+            return;
+        }
+        // An inherited context was never counted as bound to this thread.
+        final boolean counted = oldContext != null && !storage.isInherited();
+
         if (oldContext != null) {
-            if (oldContext == context) {
-                // If the context gets exchanged with itself, do nothing.
-                return;
-            }
-            else {
-                // This must not clear the context. It might still be
-                // referenced by another thread.
-                oldContext.event(ScopeEvent.LEAVE);
+            // This must not clear the context. It might still be
+            // referenced by another thread.
+            oldContext.event(ScopeEvent.LEAVE, context);
+            deactivate(oldContext, context);
+            if (counted) {
+                oldContext.unbind();
             }
         }
 
         if (context != null) {
-            threadLocal.set(context);
-            context.event(ScopeEvent.ENTER);
+            storage.set(context);
+            context.bind();
         }
         else {
-            threadLocal.remove();
+            storage.remove();
+        }
+        if (context != null) {
+            context.event(ScopeEvent.ENTER);
+        }
+    }
+
+    /**
+     * Sends ENTER to the {@link ThreadDelegatedContext.LazyScopeListener}s of the current context,
+     * unless that already happened on this thread. Looking up scoped objects does this as well.
+     */
+    public void activate()
+    {
+        final ThreadDelegatedContext context = storage.get();
+        if (context != null) {
+            activate(context);
+        }
+    }
+
+    private ThreadDelegatedContext activate(final ThreadDelegatedContext context)
+    {
+        if (context.hasLazyListeners() && activated.get() != context) {
+            activated.set(context);
+            context.lazyEvent(ScopeEvent.ENTER, null);
+        }
+        return context;
+    }
+
+    /**
+     * A lazy listener put into the context by a lookup was sent ENTER when it was put, so the thread
+     * counts as activated from then on.
+     */
+    private <T> T activated(final ThreadDelegatedContext context, final T result)
+    {
+        if (context.hasLazyListeners() && activated.get() != context) {
+            activated.set(context);
+        }
+        return result;
+    }
+
+    private void deactivate(final ThreadDelegatedContext context, @Nullable final ThreadDelegatedContext next)
+    {
+        // Also when the context lost its lazy listeners meanwhile: a stale mark would keep the next
+        // lazy listener from hearing about this thread, and the context from being collected.
+        if (activated.get() == context) {
+            activated.remove();
+            context.lazyEvent(ScopeEvent.LEAVE, next);
         }
     }
 
     @Override
     public Object get(String name, ObjectFactory<?> objectFactory)
     {
-        return provider(name, objectFactory::getObject).get();
+        // Called on every scoped proxy invocation, so this goes straight to the context.
+        final ThreadDelegatedContext context = activate(getContext());
+        return activated(context, context.getOrCreate(name, objectFactory));
+    }
+
+    /**
+     * Typed variant of {@link #get(String, ObjectFactory)}, which skips resolving the name.
+     */
+    public <T> T get(final ScopeKey<T> key, final ObjectFactory<? extends T> objectFactory)
+    {
+        final ThreadDelegatedContext context = activate(getContext());
+        return activated(context, context.getOrCreate(key, objectFactory));
     }
 
     @Override
@@ -93,16 +192,22 @@ public class ThreadDelegatedScope implements Scope
         return Thread.currentThread().getName();
     }
 
+    /**
+     * The callback runs when the current context is destroyed: after it was ended, on the last
+     * thread to leave it. Contexts that are never ended never run their callbacks.
+     */
     @Override
     public void registerDestructionCallback(String name, Runnable callback)
     {
-        throw new UnsupportedOperationException();
+        getContext().registerDestructionCallback(name, callback);
     }
 
     @Override
     public Object remove(String name)
     {
-        return getContext().remove(name);
+        // Nothing to remove from a context that does not exist, so do not create one.
+        final ThreadDelegatedContext context = peekContext();
+        return context == null ? null : activate(context).remove(name);
     }
 
     @Override
@@ -117,45 +222,47 @@ public class ThreadDelegatedScope implements Scope
         return new ThreadDelegatedScopeProvider<>(name, unscoped);
     }
 
+    @VisibleForTesting
+    <T> ThreadDelegatedScopeProvider<T> provider(final ScopeKey<T> key, final Provider<T> unscoped)
+    {
+        return new ThreadDelegatedScopeProvider<>(key, unscoped);
+    }
+
     public class ThreadDelegatedScopeProvider<T> implements Provider<T>
     {
-        private final String name;
+        private final ScopeKey<T> key;
         private final Provider<T> unscoped;
+        private final ObjectFactory<T> factory;
 
         public ThreadDelegatedScopeProvider(final String name, final Provider<T> unscoped)
         {
-            Preconditions.checkArgument(name != null, "key must not be null!");
+            this(name == null ? null : ScopeKey.of(name), unscoped);
+        }
+
+        public ThreadDelegatedScopeProvider(final ScopeKey<T> key, final Provider<T> unscoped)
+        {
+            Preconditions.checkArgument(key != null, "key must not be null!");
             Preconditions.checkArgument(unscoped != null, "unscoped provider must not be null!");
 
-            this.name = name;
+            this.key = key;
             this.unscoped = unscoped;
+            this.factory = unscoped::get;
         }
 
         @Override
         public T get()
         {
-            final ThreadDelegatedContext context = getContext();
-            // This must be synchronized around the context, because otherwise
-            // multiple threads will try to set the same value at the same time.
-            synchronized(context) {
-                if (context.containsKey(name)) {
-                    return context.get(name);
-                }
-                else {
-                    final T value = unscoped.get();
-                    context.put(name, value);
-                    return value;
-                }
-            }
+            final ThreadDelegatedContext context = activate(getContext());
+            return activated(context, context.getOrCreate(key, factory));
         }
 
         private volatile String toString = null;
 
         @Override
-        public synchronized String toString()
+        public String toString()
         {
             if (toString == null) {
-                toString = String.format("ThreadDelegatedScoped provider (name: %s) of %s", name, unscoped.toString());
+                toString = String.format("ThreadDelegatedScoped provider (name: %s) of %s", key.getName(), unscoped.toString());
             }
             return toString;
         }
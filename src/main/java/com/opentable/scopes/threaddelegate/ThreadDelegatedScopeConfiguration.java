@@ -13,12 +13,15 @@
  */
 package com.opentable.scopes.threaddelegate;
 
+import javax.servlet.DispatcherType;
+
 import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import com.opentable.scopes.threaddelegate.concurrent.ThreadDelegatingExecutorPostProcessor;
 import com.opentable.scopes.threaddelegate.servlet.ThreadDelegatingScopeFilter;
 
 /**
@@ -32,8 +35,21 @@ public class ThreadDelegatedScopeConfiguration
 
     @Bean
     public static BeanFactoryPostProcessor getBeanFactoryPostProcessor() {
-        return beanFactory ->
-                beanFactory.registerScope(ThreadDelegatedContext.SCOPE_THREAD_DELEGATED, ThreadDelegatedScope.SCOPE);
+        return beanFactory -> {
+            beanFactory.registerScope(ThreadDelegatedContext.SCOPE_THREAD_DELEGATED, ThreadDelegatedScope.SCOPE);
+
+            // The set of scoped beans is fixed now, hand out their storage slots up front.
+            for (final String name : beanFactory.getBeanDefinitionNames()) {
+                if (ThreadDelegatedContext.SCOPE_THREAD_DELEGATED.equals(beanFactory.getBeanDefinition(name).getScope())) {
+                    ScopeKey.of(name);
+                }
+            }
+        };
+    }
+
+    @Bean
+    public static ThreadDelegatingExecutorPostProcessor getThreadDelegatingExecutorPostProcessor() {
+        return new ThreadDelegatingExecutorPostProcessor(ThreadDelegatedScope.SCOPE);
     }
 
     @Bean
@@ -45,6 +61,9 @@ public class ThreadDelegatedScopeConfiguration
     public FilterRegistrationBean getThreadDelegatingScopeFilter(final ThreadDelegatingScopeFilter filter) {
         final FilterRegistrationBean bean = new FilterRegistrationBean(filter);
         bean.addUrlPatterns(PATTERN);
+        // Async dispatches go through the filter as well, to bind the context of the request again.
+        bean.setAsyncSupported(true);
+        bean.setDispatcherTypes(DispatcherType.REQUEST, DispatcherType.ASYNC);
         return bean;
     }
 }
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+/**
+ * A thread that carries the binding of its {@link ThreadDelegatedContext} in a plain field,
+ * which is cheaper to read than a {@link ThreadLocal}. The scope uses the field automatically
+ * when running on such a thread; create them with a {@link ThreadDelegatedThreadFactory}.
+ * <p>
+ * The field belongs to the first context storage used on the thread. Any other
+ * storage (e.g. a second scope instance) falls back to its thread local.
+ */
+public class ThreadDelegatedThread extends Thread
+{
+    // Only ever accessed from this thread.
+    private ThreadDelegatedContextStorage owner;
+    private ThreadDelegatedContext context;
+
+    public ThreadDelegatedThread(final Runnable target)
+    {
+        super(target);
+    }
+
+    public ThreadDelegatedThread(final Runnable target, final String name)
+    {
+        super(target, name);
+    }
+
+    public ThreadDelegatedThread(final ThreadGroup group, final Runnable target, final String name)
+    {
+        super(group, target, name);
+    }
+
+    boolean owns(final ThreadDelegatedContextStorage storage)
+    {
+        if (owner == null) {
+            owner = storage;
+        }
+        return owner == storage;
+    }
+
+    ThreadDelegatedContext getContext()
+    {
+        return context;
+    }
+
+    void setContext(final ThreadDelegatedContext context)
+    {
+        this.context = context;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Creates {@link ThreadDelegatedThread}s, e.g. for the worker threads of an executor that
+ * runs scoped code.
+ */
+public class ThreadDelegatedThreadFactory implements ThreadFactory
+{
+    private final String namePrefix;
+    private final boolean daemon;
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    public ThreadDelegatedThreadFactory(final String namePrefix)
+    {
+        this(namePrefix, false);
+    }
+
+    public ThreadDelegatedThreadFactory(final String namePrefix, final boolean daemon)
+    {
+        Preconditions.checkArgument(namePrefix != null, "name prefix must not be null!");
+        this.namePrefix = namePrefix;
+        this.daemon = daemon;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable)
+    {
+        final Thread thread = new ThreadDelegatedThread(runnable, namePrefix + "-" + threadNumber.incrementAndGet());
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
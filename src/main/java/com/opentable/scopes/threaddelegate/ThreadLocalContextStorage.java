@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+/**
+ * Keeps the context of each thread in a (possibly inheritable) {@link ThreadLocal}. On a
+ * {@link ThreadDelegatedThread} the context is kept in a field of the thread instead.
+ */
+class ThreadLocalContextStorage implements ThreadDelegatedContextStorage
+{
+    private final ThreadLocal<ThreadDelegatedContext> threadLocal;
+    private final boolean useThreadField;
+
+    /** The context set on this very thread, only tracked if the thread local is inheritable. */
+    private final ThreadLocal<ThreadDelegatedContext> own;
+
+    ThreadLocalContextStorage(final ThreadLocal<ThreadDelegatedContext> threadLocal, final boolean useThreadField)
+    {
+        this.threadLocal = threadLocal;
+        this.useThreadField = useThreadField;
+        this.own = threadLocal instanceof InheritableThreadLocal ? new ThreadLocal<>() : null;
+    }
+
+    @Override
+    public ThreadDelegatedContext get()
+    {
+        final ThreadDelegatedThread thread = ownedThread();
+        return thread != null ? thread.getContext() : threadLocal.get();
+    }
+
+    @Override
+    public void set(final ThreadDelegatedContext context)
+    {
+        final ThreadDelegatedThread thread = ownedThread();
+        if (thread != null) {
+            thread.setContext(context);
+        }
+        else {
+            threadLocal.set(context);
+            if (own != null) {
+                own.set(context);
+            }
+        }
+    }
+
+    @Override
+    public void remove()
+    {
+        final ThreadDelegatedThread thread = ownedThread();
+        if (thread != null) {
+            thread.setContext(null);
+        }
+        else {
+            threadLocal.remove();
+            if (own != null) {
+                own.remove();
+            }
+        }
+    }
+
+    @Override
+    public boolean isInherited()
+    {
+        return own != null && ownedThread() == null && own.get() != threadLocal.get();
+    }
+
+    private ThreadDelegatedThread ownedThread()
+    {
+        if (useThreadField) {
+            final Thread thread = Thread.currentThread();
+            if (thread instanceof ThreadDelegatedThread && ((ThreadDelegatedThread) thread).owns(this)) {
+                return (ThreadDelegatedThread) thread;
+            }
+        }
+        return null;
+    }
+}
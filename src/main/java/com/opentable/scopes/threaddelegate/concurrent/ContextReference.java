@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import javax.annotation.Nullable;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+
+/**
+ * The reference a task holds on the context it captured, from its creation until it has run or
+ * is known never to run (rejected, cancelled, dropped by {@code shutdownNow()}). It keeps an ended
+ * context alive for the queued task, and is released at most once.
+ */
+final class ContextReference
+{
+    private static final AtomicIntegerFieldUpdater<ContextReference> RELEASED_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(ContextReference.class, "released");
+
+    private final ThreadDelegatedContext context;
+    private final Set<ContextReference> pending;
+    private volatile int released;
+
+    private ContextReference(final ThreadDelegatedContext context, @Nullable final Set<ContextReference> pending)
+    {
+        this.context = context;
+        this.pending = pending;
+        context.retain();
+        if (pending != null) {
+            pending.add(this);
+        }
+    }
+
+    /**
+     * Retains the given context, if any. An executor that cannot enumerate the tasks it drops
+     * passes a set that holds the reference until it is released.
+     */
+    @Nullable
+    static ContextReference retain(@Nullable final ThreadDelegatedContext context, @Nullable final Set<ContextReference> pending)
+    {
+        return context == null ? null : new ContextReference(context, pending);
+    }
+
+    static void release(@Nullable final ContextReference reference)
+    {
+        if (reference != null) {
+            reference.release();
+        }
+    }
+
+    static void releaseAll(final Set<ContextReference> pending)
+    {
+        for (final ContextReference reference : pending) {
+            reference.release();
+        }
+    }
+
+    void release()
+    {
+        if (RELEASED_UPDATER.compareAndSet(this, 0, 1)) {
+            if (pending != null) {
+                pending.remove(this);
+            }
+            context.release();
+        }
+    }
+}
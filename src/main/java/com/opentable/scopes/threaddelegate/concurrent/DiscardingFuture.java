@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Forwards to the future of a task, and discards the task when it is cancelled: the executor
+ * keeps a cancelled task queued, or skips it, without the task ever running to release its context.
+ */
+class DiscardingFuture<V> implements Future<V>
+{
+    private final Future<V> delegate;
+    private final Runnable discard;
+
+    DiscardingFuture(final Future<V> delegate, final Runnable discard)
+    {
+        this.delegate = delegate;
+        this.discard = discard;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning)
+    {
+        final boolean cancelled = delegate.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            discard.run();
+        }
+        return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return delegate.isCancelled();
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return delegate.isDone();
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException
+    {
+        return delegate.get();
+    }
+
+    @Override
+    public V get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        return delegate.get(timeout, unit);
+    }
+
+    @Override
+    public String toString()
+    {
+        return delegate.toString();
+    }
+
+    static class Scheduled<V> extends DiscardingFuture<V> implements ScheduledFuture<V>
+    {
+        private final ScheduledFuture<V> delegate;
+
+        Scheduled(final ScheduledFuture<V> delegate, final Runnable discard)
+        {
+            super(delegate, discard);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit)
+        {
+            return delegate.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(final Delayed other)
+        {
+            return delegate.compareTo(other instanceof Scheduled ? ((Scheduled<?>) other).delegate : other);
+        }
+    }
+}
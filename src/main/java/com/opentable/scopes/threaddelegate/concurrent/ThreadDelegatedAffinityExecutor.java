@@ -0,0 +1,318 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedThreadFactory;
+
+/**
+ * An executor service that runs every task in the context of the thread that submitted it, and
+ * sends all tasks of a context to the same worker. A worker stays in the context of its last task
+ * until it picks up a task of another context or runs out of work, so a request that submits many
+ * small tasks enters a worker once instead of once per task, and its objects stay in one cache.
+ * <p>
+ * Every worker has its own deque. An idle worker takes tasks from the back of the deques of busy
+ * workers, so a context with more work than its worker can handle still uses the whole pool.
+ * Tasks submitted without a context are spread round-robin.
+ * <p>
+ * A queued task retains its context until it has run, so the context outlives the submitter's
+ * {@code end()}; tasks that are rejected, cancelled or dropped by {@link #shutdownNow()} release it instead.
+ */
+public class ThreadDelegatedAffinityExecutor extends AbstractExecutorService implements ThreadDelegatingExecutor
+{
+    private final ThreadDelegatedScope scope;
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final CountDownLatch terminated;
+    private volatile boolean shutdown = false;
+
+    public ThreadDelegatedAffinityExecutor(final int workerCount)
+    {
+        this(workerCount, new ThreadDelegatedThreadFactory("affinity"));
+    }
+
+    public ThreadDelegatedAffinityExecutor(final int workerCount, final ThreadFactory threadFactory)
+    {
+        this(ThreadDelegatedScope.SCOPE, workerCount, threadFactory);
+    }
+
+    public ThreadDelegatedAffinityExecutor(final ThreadDelegatedScope scope, final int workerCount, final ThreadFactory threadFactory)
+    {
+        Preconditions.checkArgument(scope != null, "scope must not be null!");
+        Preconditions.checkArgument(workerCount > 0, "worker count must be positive!");
+        Preconditions.checkArgument(threadFactory != null, "thread factory must not be null!");
+        this.scope = scope;
+        this.workers = new Worker[workerCount];
+        this.terminated = new CountDownLatch(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i);
+            workers[i].thread = threadFactory.newThread(workers[i]);
+        }
+        for (final Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    @Override
+    public void execute(final Runnable command)
+    {
+        Preconditions.checkArgument(command != null, "task must not be null!");
+        if (shutdown) {
+            reject(command);
+        }
+
+        final AffinityTask task = command instanceof AffinityFutureTask
+                ? ((AffinityFutureTask<?>) command).task
+                : new AffinityTask(scope.peekContext(), command);
+        final Worker preferred = workers[index(task.context)];
+        preferred.tasks.offerLast(task);
+
+        if (shutdown && preferred.tasks.removeLastOccurrence(task)) {
+            // Shut down while this was queued, and no worker took it.
+            ContextReference.release(task.reference);
+            throw new RejectedExecutionException("executor is shut down");
+        }
+
+        if (preferred.idle) {
+            LockSupport.unpark(preferred.thread);
+            return;
+        }
+        // The preferred worker is busy, wake up someone to steal the task.
+        for (final Worker worker : workers) {
+            if (worker.idle) {
+                LockSupport.unpark(worker.thread);
+                return;
+            }
+        }
+    }
+
+    private static void reject(final Runnable command)
+    {
+        if (command instanceof AffinityFutureTask) {
+            ContextReference.release(((AffinityFutureTask<?>) command).task.reference);
+        }
+        throw new RejectedExecutionException("executor is shut down");
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value)
+    {
+        return new AffinityFutureTask<>(scope.peekContext(), Executors.callable(runnable, value));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable)
+    {
+        return new AffinityFutureTask<>(scope.peekContext(), callable);
+    }
+
+    private int index(final ThreadDelegatedContext context)
+    {
+        if (context == null) {
+            return (nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+        }
+        final int hash = System.identityHashCode(context);
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % workers.length;
+    }
+
+    @Override
+    public void shutdown()
+    {
+        shutdown = true;
+        for (final Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        shutdown();
+        final List<Runnable> pending = new ArrayList<>();
+        for (final Worker worker : workers) {
+            AffinityTask task;
+            while ((task = worker.tasks.pollFirst()) != null) {
+                ContextReference.release(task.reference);
+                pending.add(task.command);
+            }
+            worker.thread.interrupt();
+        }
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return terminated.await(timeout, unit);
+    }
+
+    private static final class AffinityTask
+    {
+        private final ThreadDelegatedContext context;
+        private final ContextReference reference;
+        private final Runnable command;
+
+        AffinityTask(final ThreadDelegatedContext context, final Runnable command)
+        {
+            this.context = context;
+            this.reference = ContextReference.retain(context, null);
+            this.command = command;
+        }
+
+        /**
+         * Cancelled while queued, so it has released its context, which may be gone.
+         */
+        boolean isCancelled()
+        {
+            return command instanceof AffinityFutureTask && ((AffinityFutureTask<?>) command).isDone();
+        }
+    }
+
+    /**
+     * The future of a submitted task, which releases the context of the task once it completed or was cancelled.
+     */
+    private static final class AffinityFutureTask<T> extends FutureTask<T>
+    {
+        private final AffinityTask task;
+
+        AffinityFutureTask(final ThreadDelegatedContext context, final Callable<T> callable)
+        {
+            super(callable);
+            this.task = new AffinityTask(context, this);
+        }
+
+        @Override
+        protected void done()
+        {
+            ContextReference.release(task.reference);
+        }
+    }
+
+    private final class Worker implements Runnable
+    {
+        private final int index;
+        private final ConcurrentLinkedDeque<AffinityTask> tasks = new ConcurrentLinkedDeque<>();
+        private volatile boolean idle = false;
+        private Thread thread;
+
+        Worker(final int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while (true) {
+                    AffinityTask task = take();
+                    if (task == null) {
+                        // Out of work, leave the context of the last task before going to sleep.
+                        scope.changeScope(null);
+                        idle = true;
+                        // Read the flag before looking for work again, a task queued before shutdown is still seen.
+                        final boolean stopping = shutdown;
+                        task = take();
+                        if (task == null) {
+                            if (stopping) {
+                                return;
+                            }
+                            // An interrupt left behind by a task must not keep the worker from sleeping.
+                            Thread.interrupted();
+                            LockSupport.park(this);
+                            idle = false;
+                            continue;
+                        }
+                        idle = false;
+                    }
+                    runTask(task);
+                }
+            }
+            finally {
+                idle = false;
+                scope.changeScope(null);
+                terminated.countDown();
+            }
+        }
+
+        private void runTask(final AffinityTask task)
+        {
+            if (task.isCancelled()) {
+                return;
+            }
+            // Changing to the context the worker is already in does not fire any events.
+            scope.changeScope(task.context);
+            try {
+                task.command.run();
+            }
+            catch (RuntimeException | Error e) {
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+            finally {
+                if (task.context == null) {
+                    ThreadDelegatingRunnable.endCreated(scope, null);
+                }
+                else {
+                    // The worker stays in the context, so this never destroys it under the task's feet.
+                    ContextReference.release(task.reference);
+                }
+            }
+        }
+
+        private AffinityTask take()
+        {
+            final AffinityTask own = tasks.pollFirst();
+            if (own != null) {
+                return own;
+            }
+            for (int i = 1; i < workers.length; i++) {
+                final AffinityTask stolen = workers[(index + i) % workers.length].tasks.pollLast();
+                if (stolen != null) {
+                    return stolen;
+                }
+            }
+            return null;
+        }
+    }
+}
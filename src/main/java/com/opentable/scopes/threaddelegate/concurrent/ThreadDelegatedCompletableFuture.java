@@ -0,0 +1,557 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * A {@link CompletableFuture} that runs all of its stages in the {@link ThreadDelegatedContext}
+ * captured when the chain was started, no matter which thread completes the previous stage.
+ * Dependent stages are {@code ThreadDelegatedCompletableFuture}s again and carry the same context.
+ * <p>
+ * A stage that runs on a thread which already is in the captured context (e.g. a non-async stage
+ * completed by the previous async stage) does not change the scope at all.
+ */
+public class ThreadDelegatedCompletableFuture<T> extends CompletableFuture<T>
+{
+    private static final Executor DEFAULT_EXECUTOR = ForkJoinPool.commonPool();
+
+    private final ThreadDelegatedScope scope;
+    private final ThreadDelegatedContext context;
+    private final Executor defaultExecutor;
+
+    ThreadDelegatedCompletableFuture(final ThreadDelegatedScope scope, @Nullable final ThreadDelegatedContext context, final Executor defaultExecutor)
+    {
+        Preconditions.checkArgument(scope != null, "scope must not be null!");
+        Preconditions.checkArgument(defaultExecutor != null, "executor must not be null!");
+        this.scope = scope;
+        this.context = context;
+        this.defaultExecutor = defaultExecutor;
+    }
+
+    /**
+     * Runs the supplier on the common pool in the context of the calling thread.
+     */
+    public static <U> ThreadDelegatedCompletableFuture<U> supplyAsync(final Supplier<U> supplier)
+    {
+        return supplyAsync(supplier, DEFAULT_EXECUTOR);
+    }
+
+    public static <U> ThreadDelegatedCompletableFuture<U> supplyAsync(final Supplier<U> supplier, final Executor executor)
+    {
+        return completedFuture((Void) null, executor).thenApplyAsync(ignored -> supplier.get(), executor);
+    }
+
+    /**
+     * Runs the runnable on the common pool in the context of the calling thread.
+     */
+    public static ThreadDelegatedCompletableFuture<Void> runAsync(final Runnable runnable)
+    {
+        return runAsync(runnable, DEFAULT_EXECUTOR);
+    }
+
+    public static ThreadDelegatedCompletableFuture<Void> runAsync(final Runnable runnable, final Executor executor)
+    {
+        return completedFuture((Void) null, executor).thenRunAsync(runnable, executor);
+    }
+
+    /**
+     * Starts a chain in the context of the calling thread with an already known value.
+     */
+    public static <U> ThreadDelegatedCompletableFuture<U> completedFuture(final U value)
+    {
+        return completedFuture(value, DEFAULT_EXECUTOR);
+    }
+
+    private static <U> ThreadDelegatedCompletableFuture<U> completedFuture(final U value, final Executor executor)
+    {
+        final ThreadDelegatedCompletableFuture<U> future =
+                new ThreadDelegatedCompletableFuture<>(ThreadDelegatedScope.SCOPE, ThreadDelegatedScope.SCOPE.peekContext(), executor);
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * Continues the given stage in the context of the calling thread.
+     */
+    public static <U> ThreadDelegatedCompletableFuture<U> of(final CompletionStage<U> stage)
+    {
+        final ThreadDelegatedCompletableFuture<U> future =
+                new ThreadDelegatedCompletableFuture<>(ThreadDelegatedScope.SCOPE, ThreadDelegatedScope.SCOPE.peekContext(), DEFAULT_EXECUTOR);
+        stage.whenComplete(future::completeFrom);
+        return future;
+    }
+
+    /**
+     * The context all stages of this future run in.
+     */
+    @Nullable
+    public ThreadDelegatedContext getContext()
+    {
+        return context;
+    }
+
+    /**
+     * Java 9 and later create dependent stages through this method, so they are of this class
+     * right away. On Java 8 they are adopted after the fact.
+     */
+    public <U> CompletableFuture<U> newIncompleteFuture()
+    {
+        return new ThreadDelegatedCompletableFuture<>(scope, context, defaultExecutor);
+    }
+
+    /**
+     * Java 9 and later run async stages without an executor here.
+     */
+    public Executor defaultExecutor()
+    {
+        return defaultExecutor;
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> thenApply(final Function<? super T, ? extends U> fn)
+    {
+        return adopt(super.thenApply(bind(fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> thenApplyAsync(final Function<? super T, ? extends U> fn)
+    {
+        return thenApplyAsync(fn, defaultExecutor);
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> thenApplyAsync(final Function<? super T, ? extends U> fn, final Executor executor)
+    {
+        return adopt(super.thenApplyAsync(bind(fn), executor));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> thenAccept(final Consumer<? super T> action)
+    {
+        return adopt(super.thenAccept(bind(action)));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> thenAcceptAsync(final Consumer<? super T> action)
+    {
+        return thenAcceptAsync(action, defaultExecutor);
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> thenAcceptAsync(final Consumer<? super T> action, final Executor executor)
+    {
+        return adopt(super.thenAcceptAsync(bind(action), executor));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> thenRun(final Runnable action)
+    {
+        return adopt(super.thenRun(bind(action)));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> thenRunAsync(final Runnable action)
+    {
+        return thenRunAsync(action, defaultExecutor);
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> thenRunAsync(final Runnable action, final Executor executor)
+    {
+        return adopt(super.thenRunAsync(bind(action), executor));
+    }
+
+    @Override
+    public <U, V> ThreadDelegatedCompletableFuture<V> thenCombine(final CompletionStage<? extends U> other,
+            final BiFunction<? super T, ? super U, ? extends V> fn)
+    {
+        return adopt(super.thenCombine(other, bind(fn)));
+    }
+
+    @Override
+    public <U, V> ThreadDelegatedCompletableFuture<V> thenCombineAsync(final CompletionStage<? extends U> other,
+            final BiFunction<? super T, ? super U, ? extends V> fn)
+    {
+        return thenCombineAsync(other, fn, defaultExecutor);
+    }
+
+    @Override
+    public <U, V> ThreadDelegatedCompletableFuture<V> thenCombineAsync(final CompletionStage<? extends U> other,
+            final BiFunction<? super T, ? super U, ? extends V> fn, final Executor executor)
+    {
+        return adopt(super.thenCombineAsync(other, bind(fn), executor));
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<Void> thenAcceptBoth(final CompletionStage<? extends U> other,
+            final BiConsumer<? super T, ? super U> action)
+    {
+        return adopt(super.thenAcceptBoth(other, bind(action)));
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<Void> thenAcceptBothAsync(final CompletionStage<? extends U> other,
+            final BiConsumer<? super T, ? super U> action)
+    {
+        return thenAcceptBothAsync(other, action, defaultExecutor);
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<Void> thenAcceptBothAsync(final CompletionStage<? extends U> other,
+            final BiConsumer<? super T, ? super U> action, final Executor executor)
+    {
+        return adopt(super.thenAcceptBothAsync(other, bind(action), executor));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> runAfterBoth(final CompletionStage<?> other, final Runnable action)
+    {
+        return adopt(super.runAfterBoth(other, bind(action)));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> runAfterBothAsync(final CompletionStage<?> other, final Runnable action)
+    {
+        return runAfterBothAsync(other, action, defaultExecutor);
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> runAfterBothAsync(final CompletionStage<?> other, final Runnable action, final Executor executor)
+    {
+        return adopt(super.runAfterBothAsync(other, bind(action), executor));
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> applyToEither(final CompletionStage<? extends T> other, final Function<? super T, U> fn)
+    {
+        return adopt(super.applyToEither(other, bind(fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> applyToEitherAsync(final CompletionStage<? extends T> other, final Function<? super T, U> fn)
+    {
+        return applyToEitherAsync(other, fn, defaultExecutor);
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> applyToEitherAsync(final CompletionStage<? extends T> other, final Function<? super T, U> fn,
+            final Executor executor)
+    {
+        return adopt(super.applyToEitherAsync(other, bind(fn), executor));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> acceptEither(final CompletionStage<? extends T> other, final Consumer<? super T> action)
+    {
+        return adopt(super.acceptEither(other, bind(action)));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> acceptEitherAsync(final CompletionStage<? extends T> other, final Consumer<? super T> action)
+    {
+        return acceptEitherAsync(other, action, defaultExecutor);
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> acceptEitherAsync(final CompletionStage<? extends T> other, final Consumer<? super T> action,
+            final Executor executor)
+    {
+        return adopt(super.acceptEitherAsync(other, bind(action), executor));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> runAfterEither(final CompletionStage<?> other, final Runnable action)
+    {
+        return adopt(super.runAfterEither(other, bind(action)));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> runAfterEitherAsync(final CompletionStage<?> other, final Runnable action)
+    {
+        return runAfterEitherAsync(other, action, defaultExecutor);
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<Void> runAfterEitherAsync(final CompletionStage<?> other, final Runnable action, final Executor executor)
+    {
+        return adopt(super.runAfterEitherAsync(other, bind(action), executor));
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> thenCompose(final Function<? super T, ? extends CompletionStage<U>> fn)
+    {
+        return adopt(super.thenCompose(bind(fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> thenComposeAsync(final Function<? super T, ? extends CompletionStage<U>> fn)
+    {
+        return thenComposeAsync(fn, defaultExecutor);
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> thenComposeAsync(final Function<? super T, ? extends CompletionStage<U>> fn, final Executor executor)
+    {
+        return adopt(super.thenComposeAsync(bind(fn), executor));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<T> whenComplete(final BiConsumer<? super T, ? super Throwable> action)
+    {
+        return adopt(super.whenComplete(bind(action)));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<T> whenCompleteAsync(final BiConsumer<? super T, ? super Throwable> action)
+    {
+        return whenCompleteAsync(action, defaultExecutor);
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<T> whenCompleteAsync(final BiConsumer<? super T, ? super Throwable> action, final Executor executor)
+    {
+        return adopt(super.whenCompleteAsync(bind(action), executor));
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> handle(final BiFunction<? super T, Throwable, ? extends U> fn)
+    {
+        return adopt(super.handle(bind(fn)));
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> handleAsync(final BiFunction<? super T, Throwable, ? extends U> fn)
+    {
+        return handleAsync(fn, defaultExecutor);
+    }
+
+    @Override
+    public <U> ThreadDelegatedCompletableFuture<U> handleAsync(final BiFunction<? super T, Throwable, ? extends U> fn, final Executor executor)
+    {
+        return adopt(super.handleAsync(bind(fn), executor));
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<T> exceptionally(final Function<Throwable, ? extends T> fn)
+    {
+        return adopt(super.exceptionally(bind(fn)));
+    }
+
+    /*
+     * The methods below were added in Java 9 and 12. This class targets Java 8, so they are built
+     * from the Java 8 methods. They keep the exact signatures of the JDK: javac does not generate
+     * bridge methods for methods it cannot see, so a covariant return type would not override them.
+     */
+
+    public CompletableFuture<T> exceptionallyAsync(final Function<Throwable, ? extends T> fn)
+    {
+        return exceptionallyAsync(fn, defaultExecutor);
+    }
+
+    public CompletableFuture<T> exceptionallyAsync(final Function<Throwable, ? extends T> fn, final Executor executor)
+    {
+        Preconditions.checkArgument(fn != null, "function must not be null!");
+        return exceptionallyComposeAsync(failure -> CompletableFuture.completedFuture(fn.apply(failure)), executor);
+    }
+
+    public CompletableFuture<T> exceptionallyCompose(final Function<Throwable, ? extends CompletionStage<T>> fn)
+    {
+        return recover(fn, null);
+    }
+
+    public CompletableFuture<T> exceptionallyComposeAsync(final Function<Throwable, ? extends CompletionStage<T>> fn)
+    {
+        return exceptionallyComposeAsync(fn, defaultExecutor);
+    }
+
+    public CompletableFuture<T> exceptionallyComposeAsync(final Function<Throwable, ? extends CompletionStage<T>> fn,
+            final Executor executor)
+    {
+        Preconditions.checkArgument(executor != null, "executor must not be null!");
+        return recover(fn, executor);
+    }
+
+    public CompletableFuture<T> completeAsync(final Supplier<? extends T> supplier)
+    {
+        return completeAsync(supplier, defaultExecutor);
+    }
+
+    public CompletableFuture<T> completeAsync(final Supplier<? extends T> supplier, final Executor executor)
+    {
+        Preconditions.checkArgument(supplier != null, "supplier must not be null!");
+        Preconditions.checkArgument(executor != null, "executor must not be null!");
+        executor.execute(bind(() -> {
+            try {
+                complete(supplier.get());
+            }
+            catch (RuntimeException | Error e) {
+                completeExceptionally(new CompletionException(e));
+            }
+        }));
+        return this;
+    }
+
+    @Override
+    public ThreadDelegatedCompletableFuture<T> toCompletableFuture()
+    {
+        return this;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ThreadDelegated" + super.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <U> ThreadDelegatedCompletableFuture<U> adopt(final CompletableFuture<U> future)
+    {
+        if (future instanceof ThreadDelegatedCompletableFuture) {
+            return (ThreadDelegatedCompletableFuture<U>) future;
+        }
+        final ThreadDelegatedCompletableFuture<U> adopted = new ThreadDelegatedCompletableFuture<>(scope, context, defaultExecutor);
+        future.whenComplete(adopted::completeFrom);
+        return adopted;
+    }
+
+    /**
+     * Continues with the stage returned by the function if this future fails, on the executor if there is one.
+     */
+    private ThreadDelegatedCompletableFuture<T> recover(final Function<Throwable, ? extends CompletionStage<T>> fn, @Nullable final Executor executor)
+    {
+        Preconditions.checkArgument(fn != null, "function must not be null!");
+        final Function<Throwable, ? extends CompletionStage<T>> bound = bind(fn);
+        return adopt(super.<CompletionStage<T>>handle((value, failure) -> {
+            if (failure == null) {
+                return this;
+            }
+            if (executor == null) {
+                return bound.apply(failure);
+            }
+            return CompletableFuture.supplyAsync(() -> bound.apply(failure), executor).thenCompose(Function.identity());
+        }).thenCompose(Function.identity()));
+    }
+
+    private void completeFrom(final T value, final Throwable failure)
+    {
+        if (failure != null) {
+            completeExceptionally(failure);
+        }
+        else {
+            complete(value);
+        }
+    }
+
+    /**
+     * Enters the captured context, unless the current thread is in it already.
+     * Returns the context to go back to.
+     */
+    private ThreadDelegatedContext enter()
+    {
+        final ThreadDelegatedContext previous = scope.peekContext();
+        if (previous != context) {
+            scope.changeScope(context);
+        }
+        return previous;
+    }
+
+    private void leave(final ThreadDelegatedContext previous)
+    {
+        if (previous != context) {
+            scope.changeScope(previous);
+        }
+    }
+
+    private <A, R> Function<A, R> bind(final Function<A, R> fn)
+    {
+        return a -> {
+            final ThreadDelegatedContext previous = enter();
+            try {
+                return fn.apply(a);
+            }
+            finally {
+                leave(previous);
+            }
+        };
+    }
+
+    private <A> Consumer<A> bind(final Consumer<A> action)
+    {
+        return a -> {
+            final ThreadDelegatedContext previous = enter();
+            try {
+                action.accept(a);
+            }
+            finally {
+                leave(previous);
+            }
+        };
+    }
+
+    private Runnable bind(final Runnable action)
+    {
+        return () -> {
+            final ThreadDelegatedContext previous = enter();
+            try {
+                action.run();
+            }
+            finally {
+                leave(previous);
+            }
+        };
+    }
+
+    private <A, B, R> BiFunction<A, B, R> bind(final BiFunction<A, B, R> fn)
+    {
+        return (a, b) -> {
+            final ThreadDelegatedContext previous = enter();
+            try {
+                return fn.apply(a, b);
+            }
+            finally {
+                leave(previous);
+            }
+        };
+    }
+
+    private <A, B> BiConsumer<A, B> bind(final BiConsumer<A, B> action)
+    {
+        return (a, b) -> {
+            final ThreadDelegatedContext previous = enter();
+            try {
+                action.accept(a, b);
+            }
+            finally {
+                leave(previous);
+            }
+        };
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.common.base.Preconditions;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Fans work out to subtasks, each of which runs in its own child of the current context.
+ * Subtasks see every object of the parent context, but objects they create stay in their
+ * child, so they do not write to the shared parent. A child is ended as soon as its subtask is done.
+ * <p>
+ * Only the thread that opened the fan-out may fork, join and close it. Closing cancels the
+ * subtasks that are still running and waits for all of them, so no thread is left in a child
+ * context once {@link #close()} returns:
+ * <pre>
+ * try (ThreadDelegatedFanOut fanOut = ThreadDelegatedFanOut.open(executor)) {
+ *     Future&lt;A&gt; a = fanOut.fork(this::loadA);
+ *     Future&lt;B&gt; b = fanOut.fork(this::loadB);
+ *     fanOut.join();
+ *     return combine(a.get(), b.get());
+ * }
+ * </pre>
+ */
+public class ThreadDelegatedFanOut implements AutoCloseable
+{
+    private final ThreadDelegatedScope scope;
+    private final ThreadDelegatedContext parent;
+    private final Executor executor;
+    private final Thread owner = Thread.currentThread();
+
+    /** The owner is a party, every subtask registers until it finished running. */
+    private final Phaser running = new Phaser(1);
+    private final List<Future<?>> subtasks = new ArrayList<>();
+    /** The phase the owner arrived at last; a join that was interrupted must not arrive in it again. */
+    private int arrived = -1;
+    private boolean closed = false;
+
+    ThreadDelegatedFanOut(final ThreadDelegatedScope scope, final ThreadDelegatedContext parent, final Executor executor)
+    {
+        Preconditions.checkArgument(scope != null, "scope must not be null!");
+        Preconditions.checkArgument(parent != null, "parent context must not be null!");
+        Preconditions.checkArgument(executor != null, "executor must not be null!");
+        this.scope = scope;
+        this.parent = parent;
+        this.executor = executor;
+    }
+
+    /**
+     * Opens a fan-out from the context of the calling thread, running subtasks on the given executor.
+     */
+    public static ThreadDelegatedFanOut open(final Executor executor)
+    {
+        return open(ThreadDelegatedScope.SCOPE, executor);
+    }
+
+    public static ThreadDelegatedFanOut open(final ThreadDelegatedScope scope, final Executor executor)
+    {
+        return new ThreadDelegatedFanOut(scope, scope.getContext(), executor);
+    }
+
+    public ThreadDelegatedContext getParent()
+    {
+        return parent;
+    }
+
+    /**
+     * Starts a subtask in a new child of the parent context.
+     */
+    public <V> Future<V> fork(final Callable<V> task)
+    {
+        Preconditions.checkArgument(task != null, "task must not be null!");
+        checkOwner();
+        Preconditions.checkState(!closed, "fan-out is closed");
+
+        final ThreadDelegatedContext child = parent.fork();
+        final ThreadDelegatingCallable<V> callable = new ThreadDelegatingCallable<>(scope, child, task);
+        final FutureTask<V> subtask = new FutureTask<>(callable);
+        running.register();
+        subtasks.add(subtask);
+        try {
+            executor.execute(() -> {
+                try {
+                    subtask.run();
+                }
+                finally {
+                    // A subtask cancelled before it started never called in to release the child.
+                    callable.discard();
+                    child.end();
+                    running.arriveAndDeregister();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            subtasks.remove(subtask);
+            callable.discard();
+            child.end();
+            running.arriveAndDeregister();
+            throw e;
+        }
+        return subtask;
+    }
+
+    /**
+     * Waits until all subtasks forked so far have finished. Their results and failures are
+     * available from the futures returned by {@link #fork(Callable)}.
+     */
+    public void join() throws InterruptedException
+    {
+        checkOwner();
+        running.awaitAdvanceInterruptibly(arrive());
+    }
+
+    /**
+     * Cancels all subtasks that did not finish yet and waits for them to leave their contexts.
+     */
+    @Override
+    public void close()
+    {
+        checkOwner();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final Future<?> subtask : subtasks) {
+            subtask.cancel(true);
+        }
+        running.awaitAdvance(arrive());
+        subtasks.clear();
+    }
+
+    private int arrive()
+    {
+        // Only the owner forks, so the phase cannot advance past one the owner has not arrived at yet.
+        if (running.getPhase() != arrived) {
+            arrived = running.arrive();
+        }
+        return arrived;
+    }
+
+    private void checkOwner()
+    {
+        Preconditions.checkState(owner == Thread.currentThread(), "fan-out is owned by %s", owner.getName());
+    }
+}
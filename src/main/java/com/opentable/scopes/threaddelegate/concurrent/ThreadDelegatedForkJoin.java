@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Fork/join pools whose workers all run in one {@link ThreadDelegatedContext}, e.g. for
+ * parallel streams or {@code RecursiveTask}s that use scoped objects.
+ * <p>
+ * Each worker enters the context once rather than once per task, so splitting work into many
+ * small tasks does not cause scope events per task.
+ * <p>
+ * {@link #invoke(ThreadDelegatedContext, Supplier)} runs on long-lived shared pools. A pool serves
+ * one invocation at a time: all its workers enter the context of the invocation before the work
+ * starts, and leave it again before the invocation returns.
+ * <p>
+ * That switching is paid per invocation, by every worker of the pool, whether or not it gets any
+ * of the work: {@code ForkJoinPool} has no hook that runs before a worker takes its next task, so
+ * the pool cannot switch just the workers that take part. {@code ThreadDelegatedForkJoinBenchmark}
+ * puts it at about 10us on a single core, growing with the parallelism; use {@code invoke} for
+ * work well above that, and a pool from {@link #newPool(int, ThreadDelegatedContext)} to run many
+ * small jobs in one context.
+ */
+public final class ThreadDelegatedForkJoin
+{
+    /** How long switching the workers of a shared pool may take before the pool is given up. */
+    private static final long SWITCH_TIMEOUT_SECONDS = 10;
+
+    /** Shared pools that do not run an invocation right now, most recently used first. */
+    private static final ConcurrentLinkedDeque<SharedPool> IDLE = new ConcurrentLinkedDeque<>();
+
+    private ThreadDelegatedForkJoin()
+    {
+    }
+
+    /**
+     * Runs the given work (e.g. a parallel stream) on a shared pool bound to the context of the
+     * calling thread.
+     */
+    public static <T> T invoke(final Supplier<T> work)
+    {
+        return invoke(ThreadDelegatedScope.SCOPE.peekContext(), work);
+    }
+
+    /**
+     * Runs the given work (e.g. a parallel stream) on a shared pool bound to the given context.
+     * No worker is left in the context when this returns.
+     */
+    public static <T> T invoke(@Nullable final ThreadDelegatedContext context, final Supplier<T> work)
+    {
+        Preconditions.checkArgument(work != null, "work must not be null!");
+        SharedPool pool = IDLE.pollFirst();
+        if (pool == null) {
+            pool = new SharedPool(ThreadDelegatedScope.SCOPE, Runtime.getRuntime().availableProcessors());
+        }
+        if (!pool.switchTo(context)) {
+            pool.close();
+            throw new IllegalStateException("Could not start the workers of a fork/join pool");
+        }
+
+        try {
+            // Only wait on the root task: a thread outside the pool that helps with the work runs it in its own context.
+            return pool.pool.submit(() -> {
+                try {
+                    return work.get();
+                }
+                finally {
+                    // Subtasks may still run after the result is in, e.g. when one of them failed. Helping them
+                    // finish from inside the pool keeps them in the context.
+                    ForkJoinTask.getPool().awaitQuiescence(SWITCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+            }).join();
+        }
+        finally {
+            if (pool.switchTo(null)) {
+                IDLE.offerFirst(pool);
+            }
+            else {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a new pool whose workers are in the given context. Shut it down once the work
+     * for that context is done.
+     */
+    public static ForkJoinPool newPool(final int parallelism, @Nullable final ThreadDelegatedContext context)
+    {
+        return newPool(ThreadDelegatedScope.SCOPE, parallelism, context);
+    }
+
+    public static ForkJoinPool newPool(final ThreadDelegatedScope scope, final int parallelism, @Nullable final ThreadDelegatedContext context)
+    {
+        Preconditions.checkArgument(scope != null, "scope must not be null!");
+        return new ForkJoinPool(parallelism, pool -> new Worker(pool, scope, () -> context), null, false);
+    }
+
+    /**
+     * A pool whose workers are switched to the context of each invocation it runs.
+     */
+    private static final class SharedPool
+    {
+        private final ThreadDelegatedScope scope;
+        private final ForkJoinPool pool;
+
+        /** Workers started during an invocation enter this context right away. */
+        private volatile ThreadDelegatedContext context;
+
+        SharedPool(final ThreadDelegatedScope scope, final int parallelism)
+        {
+            this.scope = scope;
+            this.pool = new ForkJoinPool(parallelism, p -> new Worker(p, scope, () -> context), null, false);
+        }
+
+        /**
+         * Moves every worker into the given context. Each worker runs one task that changes its scope and
+         * then waits for all others, so no worker can pick up a second one: every worker is switched exactly
+         * once, and missing workers are started. Returns false if not all workers could be switched.
+         * <p>
+         * Costs one task hand-off per worker and a barrier round, see the class comment.
+         */
+        boolean switchTo(@Nullable final ThreadDelegatedContext target)
+        {
+            context = target;
+            // Workers added to make up for blocked ones may be alive besides the regular ones.
+            final int parties = Math.max(pool.getParallelism(), pool.getPoolSize());
+            final CyclicBarrier barrier = new CyclicBarrier(parties);
+            final ForkJoinTask<?>[] switches = new ForkJoinTask<?>[parties];
+            for (int i = 0; i < parties; i++) {
+                switches[i] = pool.submit(() -> {
+                    scope.changeScope(target);
+                    barrier.await(SWITCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    return null;
+                });
+            }
+            boolean switched = true;
+            for (final ForkJoinTask<?> task : switches) {
+                try {
+                    task.join();
+                }
+                catch (RuntimeException e) {
+                    switched = false;
+                }
+            }
+            return switched;
+        }
+
+        /**
+         * Gives the pool up. Terminating workers leave their context, this waits for them to do so.
+         */
+        void close()
+        {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(SWITCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Worker extends ForkJoinWorkerThread
+    {
+        private final ThreadDelegatedScope scope;
+        private final Supplier<ThreadDelegatedContext> context;
+
+        Worker(final ForkJoinPool pool, final ThreadDelegatedScope scope, final Supplier<ThreadDelegatedContext> context)
+        {
+            super(pool);
+            this.scope = scope;
+            this.context = context;
+        }
+
+        @Override
+        protected void onStart()
+        {
+            super.onStart();
+            scope.changeScope(context.get());
+        }
+
+        @Override
+        protected void onTermination(final Throwable exception)
+        {
+            try {
+                scope.changeScope(null);
+            }
+            finally {
+                super.onTermination(exception);
+            }
+        }
+    }
+}
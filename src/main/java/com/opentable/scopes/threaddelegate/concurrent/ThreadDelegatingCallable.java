@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Calls a task in the context that was current when the task was created, and restores
+ * the previous context of the executing thread afterwards. A task created without a context
+ * runs in a fresh one, which is ended when the task is done. Like {@link ThreadDelegatingRunnable},
+ * the task retains its context until it was called or discarded.
+ */
+public class ThreadDelegatingCallable<V> implements Callable<V>
+{
+    private final ThreadDelegatedScope scope;
+    private final ThreadDelegatedContext context;
+    private final ContextReference reference;
+    private final Callable<V> delegate;
+
+    ThreadDelegatingCallable(final ThreadDelegatedScope scope, @Nullable final ThreadDelegatedContext context, final Callable<V> delegate)
+    {
+        this(scope, context, delegate, true, null);
+    }
+
+    /**
+     * @param retain whether to retain the context until the task was called
+     * @param pending where the executor keeps the references of tasks it may drop, if anywhere
+     */
+    ThreadDelegatingCallable(final ThreadDelegatedScope scope, @Nullable final ThreadDelegatedContext context, final Callable<V> delegate,
+            final boolean retain, @Nullable final Set<ContextReference> pending)
+    {
+        Preconditions.checkArgument(delegate != null, "task must not be null!");
+        this.scope = scope;
+        this.context = context;
+        this.delegate = delegate;
+        this.reference = retain ? ContextReference.retain(context, pending) : null;
+    }
+
+    /**
+     * Captures the current context of the calling thread for the given task.
+     */
+    public static <V> Callable<V> wrap(final ThreadDelegatedScope scope, final Callable<V> callable)
+    {
+        return new ThreadDelegatingCallable<>(scope, scope.peekContext(), callable);
+    }
+
+    /**
+     * Releases the captured context for a task that will not be called.
+     */
+    void discard()
+    {
+        ContextReference.release(reference);
+    }
+
+    @Override
+    public V call() throws Exception
+    {
+        final ThreadDelegatedContext previous = scope.peekContext();
+        scope.changeScope(context);
+        try {
+            return delegate.call();
+        }
+        finally {
+            if (context == null) {
+                ThreadDelegatingRunnable.endCreated(scope, previous);
+            }
+            else {
+                discard();
+                scope.changeScope(previous);
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ThreadDelegating " + delegate;
+    }
+}
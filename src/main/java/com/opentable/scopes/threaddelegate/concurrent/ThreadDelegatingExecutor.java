@@ -0,0 +1,25 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Marks an executor that runs tasks in the context of their submitter by itself. The
+ * {@link ThreadDelegatingExecutorPostProcessor} leaves such executors alone instead of wrapping
+ * them a second time.
+ */
+public interface ThreadDelegatingExecutor extends Executor
+{
+}
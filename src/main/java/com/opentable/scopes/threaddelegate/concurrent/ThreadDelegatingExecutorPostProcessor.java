@@ -0,0 +1,276 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+import com.google.common.base.Preconditions;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.framework.autoproxy.AutoProxyUtils;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.ClassUtils;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Makes every executor bean propagate the context, so {@code @Async} methods and tasks handed to
+ * Spring managed pools run in the context of the caller:
+ * <ul>
+ * <li>Executors that take a {@link TaskDecorator}, like {@code ThreadPoolTaskExecutor}, get a
+ * {@link ThreadDelegatingTaskDecorator} chained in front of the decorator they already have.</li>
+ * <li>Other executors are proxied. The proxy implements the interfaces of the bean; it only
+ * extends the class of the bean if the bean is declared as that class, so it can still be
+ * injected by it. Submitted tasks run in the submitter's context, except for
+ * the {@code schedule} methods of a {@link TaskScheduler}: {@code @Scheduled} jobs do not belong
+ * to the thread that registered them, so every run starts without a context and leaves the one
+ * it created behind.</li>
+ * </ul>
+ * A queued task retains the submitter's context until it has run; the proxy releases it when the
+ * task is rejected, its {@code Future} is cancelled, or the executor is shut down with {@code shutdownNow()}.
+ * Tasks whose method returns another kind of future, which could be cancelled behind the proxy's
+ * back, capture the context without retaining it.
+ * Beans marked with {@link NotThreadDelegated} are left alone, and so are executors that already
+ * propagate the context: {@link ThreadDelegatingExecutor}s and beans proxied before.
+ */
+public class ThreadDelegatingExecutorPostProcessor implements BeanPostProcessor, BeanFactoryAware
+{
+    private static final String TASK_DECORATOR = "taskDecorator";
+
+    private final ThreadDelegatedScope scope;
+    private ListableBeanFactory beanFactory;
+
+    public ThreadDelegatingExecutorPostProcessor(final ThreadDelegatedScope scope)
+    {
+        Preconditions.checkArgument(scope != null, "scope must not be null!");
+        this.scope = scope;
+    }
+
+    @Override
+    public void setBeanFactory(final BeanFactory beanFactory)
+    {
+        this.beanFactory = beanFactory instanceof ListableBeanFactory ? (ListableBeanFactory) beanFactory : null;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(final Object bean, final String beanName) throws BeansException
+    {
+        // The decorator must be in place before the executor initializes its pool.
+        if (bean instanceof Executor && !(bean instanceof ThreadDelegatingExecutor) && !isExcluded(beanName)) {
+            final BeanWrapper wrapper = PropertyAccessorFactory.forBeanPropertyAccess(bean);
+            if (wrapper.isWritableProperty(TASK_DECORATOR)) {
+                final DirectFieldAccessor fields = new DirectFieldAccessor(bean);
+                final Object existing = fields.isReadableProperty(TASK_DECORATOR) ? fields.getPropertyValue(TASK_DECORATOR) : null;
+                if (!(existing instanceof ThreadDelegatingTaskDecorator)) {
+                    wrapper.setPropertyValue(TASK_DECORATOR, new ThreadDelegatingTaskDecorator(scope, (TaskDecorator) existing));
+                }
+            }
+        }
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(final Object bean, final String beanName) throws BeansException
+    {
+        if (!(bean instanceof Executor)
+                || bean instanceof ThreadDelegatingExecutor
+                || PropertyAccessorFactory.forBeanPropertyAccess(bean).isWritableProperty(TASK_DECORATOR)
+                || isProxied(bean)
+                || isExcluded(beanName)) {
+            return bean;
+        }
+
+        final ProxyFactory proxyFactory = new ProxyFactory(bean);
+        final Class<?> beanClass = bean.getClass();
+        proxyFactory.setProxyTargetClass(isInjectedByClass(beanClass, beanName));
+        proxyFactory.addAdvice(new ThreadDelegatingInterceptor(scope, bean instanceof TaskScheduler));
+        // JDK executors come from the bootstrap loader, which cannot define an interface proxy.
+        final ClassLoader classLoader = beanClass.getClassLoader();
+        return proxyFactory.getProxy(classLoader != null ? classLoader : ClassUtils.getDefaultClassLoader());
+    }
+
+    /**
+     * Whether the bean may be injected by its class rather than an interface, so the proxy has
+     * to extend the class. That is the case when its definition declares a class, e.g. as the
+     * return type of a {@code @Bean} method, or asks for its class to be preserved.
+     */
+    private boolean isInjectedByClass(final Class<?> beanClass, final String beanName)
+    {
+        if (!Modifier.isPublic(beanClass.getModifiers()) || Modifier.isFinal(beanClass.getModifiers())
+                || !(beanFactory instanceof ConfigurableListableBeanFactory) || !beanFactory.containsBeanDefinition(beanName)) {
+            return false;
+        }
+        final ConfigurableListableBeanFactory factory = (ConfigurableListableBeanFactory) beanFactory;
+        if (AutoProxyUtils.shouldProxyTargetClass(factory, beanName)) {
+            return true;
+        }
+        final BeanDefinition definition = factory.getMergedBeanDefinition(beanName);
+        if (!(definition instanceof RootBeanDefinition)) {
+            return false;
+        }
+        // Once the bean exists, the target type is its actual class, so look at the factory method first.
+        final Method factoryMethod = ((RootBeanDefinition) definition).getResolvedFactoryMethod();
+        final Class<?> declared = factoryMethod != null ? factoryMethod.getReturnType() : ((RootBeanDefinition) definition).getTargetType();
+        return declared != null && !declared.isInterface();
+    }
+
+    private boolean isExcluded(final String beanName)
+    {
+        return beanFactory != null && beanFactory.containsBean(beanName)
+                && beanFactory.findAnnotationOnBean(beanName, NotThreadDelegated.class) != null;
+    }
+
+    private static boolean isProxied(final Object bean)
+    {
+        if (bean instanceof Advised) {
+            for (final Advisor advisor : ((Advised) bean).getAdvisors()) {
+                if (advisor.getAdvice() instanceof ThreadDelegatingInterceptor) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wraps the tasks handed to an executor.
+     */
+    private static class ThreadDelegatingInterceptor implements MethodInterceptor
+    {
+        private final ThreadDelegatedScope scope;
+        private final boolean scheduler;
+        private final Set<ContextReference> pending = ConcurrentHashMap.newKeySet();
+
+        ThreadDelegatingInterceptor(final ThreadDelegatedScope scope, final boolean scheduler)
+        {
+            this.scope = scope;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public Object invoke(final MethodInvocation invocation) throws Throwable
+        {
+            final Object[] arguments = invocation.getArguments();
+            final String name = invocation.getMethod().getName();
+            if (arguments.length == 0) {
+                final Object result = invocation.proceed();
+                if ("shutdownNow".equals(name)) {
+                    ContextReference.releaseAll(pending);
+                }
+                return result;
+            }
+            if (scheduler && name.startsWith("schedule") && arguments[0] instanceof Runnable) {
+                arguments[0] = new ThreadDelegatingRunnable(scope, null, (Runnable) arguments[0]);
+            }
+            else if (name.startsWith("invoke") && arguments[0] instanceof Collection) {
+                final List<ThreadDelegatingCallable<?>> wrapped = wrapAll((Collection<?>) arguments[0]);
+                arguments[0] = wrapped;
+                try {
+                    return invocation.proceed();
+                }
+                finally {
+                    // The tasks that did not run by now never will.
+                    for (final ThreadDelegatingCallable<?> task : wrapped) {
+                        if (task != null) {
+                            task.discard();
+                        }
+                    }
+                }
+            }
+            else if (name.startsWith("execute") || name.startsWith("submit") || name.startsWith("schedule")) {
+                final Class<?> returnType = invocation.getMethod().getReturnType();
+                final boolean retain = returnType == void.class || returnType == Future.class || returnType == ScheduledFuture.class;
+                final Runnable discard;
+                if (arguments[0] instanceof Runnable) {
+                    final ThreadDelegatingRunnable task = new ThreadDelegatingRunnable(scope, scope.peekContext(), (Runnable) arguments[0],
+                            retain, pending, name.startsWith("scheduleAt") || name.startsWith("scheduleWith"));
+                    arguments[0] = task;
+                    discard = task::discard;
+                }
+                else if (arguments[0] instanceof Callable) {
+                    final ThreadDelegatingCallable<?> task = new ThreadDelegatingCallable<>(scope, scope.peekContext(), (Callable<?>) arguments[0],
+                            retain, pending);
+                    arguments[0] = task;
+                    discard = task::discard;
+                }
+                else {
+                    return invocation.proceed();
+                }
+                return proceed(invocation, returnType, discard);
+            }
+            return invocation.proceed();
+        }
+
+        /**
+         * Releases the context of a rejected task, or once the task's future is cancelled.
+         */
+        private static Object proceed(final MethodInvocation invocation, final Class<?> returnType, final Runnable discard) throws Throwable
+        {
+            final Object result;
+            try {
+                result = invocation.proceed();
+            }
+            catch (final RejectedExecutionException e) {
+                discard.run();
+                throw e;
+            }
+            if (returnType == ScheduledFuture.class && result != null) {
+                return new DiscardingFuture.Scheduled<>((ScheduledFuture<?>) result, discard);
+            }
+            if (returnType == Future.class && result != null) {
+                return new DiscardingFuture<>((Future<?>) result, discard);
+            }
+            return result;
+        }
+
+        private List<ThreadDelegatingCallable<?>> wrapAll(final Collection<?> tasks)
+        {
+            final ThreadDelegatedContext context = scope.peekContext();
+            final List<ThreadDelegatingCallable<?>> wrapped = new ArrayList<>(tasks.size());
+            for (final Object task : tasks) {
+                // Leave null tasks to the executor, which rejects them.
+                wrapped.add(task == null ? null : new ThreadDelegatingCallable<>(scope, context, (Callable<?>) task, true, pending));
+            }
+            return wrapped;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Preconditions;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * An executor service that runs every task in the {@link ThreadDelegatedContext} of the thread
+ * that submitted it. The context is captured at submission, which does not create a context if
+ * the submitter has none; the worker's own context is restored after each task.
+ * <p>
+ * A queued task retains its context, so the context outlives the submitter's {@code end()} until
+ * the task has run. A task that is rejected, cancelled or dropped by {@link #shutdownNow()}
+ * releases it instead.
+ */
+public class ThreadDelegatingExecutorService implements ExecutorService, ThreadDelegatingExecutor
+{
+    private final ExecutorService delegate;
+    protected final ThreadDelegatedScope scope;
+    /** The contexts retained by tasks that have not run yet; the delegate may not hand them back on shutdownNow(). */
+    private final Set<ContextReference> pending = ConcurrentHashMap.newKeySet();
+
+    public ThreadDelegatingExecutorService(final ExecutorService delegate)
+    {
+        this(delegate, ThreadDelegatedScope.SCOPE);
+    }
+
+    public ThreadDelegatingExecutorService(final ExecutorService delegate, final ThreadDelegatedScope scope)
+    {
+        Preconditions.checkArgument(delegate != null, "delegate must not be null!");
+        Preconditions.checkArgument(scope != null, "scope must not be null!");
+        this.delegate = delegate;
+        this.scope = scope;
+    }
+
+    @Override
+    public void execute(final Runnable command)
+    {
+        final ThreadDelegatingRunnable task = wrap(command);
+        try {
+            delegate.execute(task);
+        }
+        catch (final RejectedExecutionException e) {
+            task.discard();
+            throw e;
+        }
+    }
+
+    @Override
+    public <T> Future<T> submit(final Callable<T> task)
+    {
+        return submit(wrap(task));
+    }
+
+    @Override
+    public <T> Future<T> submit(final Runnable task, final T result)
+    {
+        Preconditions.checkArgument(task != null, "task must not be null!");
+        return submit(wrap(Executors.callable(task, result)));
+    }
+
+    @Override
+    public Future<?> submit(final Runnable task)
+    {
+        Preconditions.checkArgument(task != null, "task must not be null!");
+        return submit(wrap(Executors.callable(task)));
+    }
+
+    /**
+     * Submits through {@code execute}, so the future is ours and cancelling it releases the context.
+     */
+    private <T> Future<T> submit(final ThreadDelegatingCallable<T> task)
+    {
+        final FutureTask<T> future = new DiscardingFutureTask<>(task);
+        try {
+            delegate.execute(future);
+        }
+        catch (final RejectedExecutionException e) {
+            task.discard();
+            throw e;
+        }
+        return future;
+    }
+
+    @Override
+    public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks) throws InterruptedException
+    {
+        final List<ThreadDelegatingCallable<T>> wrapped = wrap(tasks);
+        try {
+            return delegate.invokeAll(wrapped);
+        }
+        finally {
+            discard(wrapped);
+        }
+    }
+
+    @Override
+    public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final List<ThreadDelegatingCallable<T>> wrapped = wrap(tasks);
+        try {
+            return delegate.invokeAll(wrapped, timeout, unit);
+        }
+        finally {
+            discard(wrapped);
+        }
+    }
+
+    @Override
+    public <T> T invokeAny(final Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException
+    {
+        final List<ThreadDelegatingCallable<T>> wrapped = wrap(tasks);
+        try {
+            return delegate.invokeAny(wrapped);
+        }
+        finally {
+            discard(wrapped);
+        }
+    }
+
+    @Override
+    public <T> T invokeAny(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+    {
+        final List<ThreadDelegatingCallable<T>> wrapped = wrap(tasks);
+        try {
+            return delegate.invokeAny(wrapped, timeout, unit);
+        }
+        finally {
+            discard(wrapped);
+        }
+    }
+
+    @Override
+    public void shutdown()
+    {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        final List<Runnable> dropped = delegate.shutdownNow();
+        ContextReference.releaseAll(pending);
+        return dropped;
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    protected ThreadDelegatingRunnable wrap(final Runnable runnable)
+    {
+        return wrap(runnable, false);
+    }
+
+    /**
+     * @param repeating whether the task runs periodically and keeps its context until it is cancelled
+     */
+    ThreadDelegatingRunnable wrap(final Runnable runnable, final boolean repeating)
+    {
+        return new ThreadDelegatingRunnable(scope, scope.peekContext(), runnable, true, pending, repeating);
+    }
+
+    protected <T> ThreadDelegatingCallable<T> wrap(final Callable<T> callable)
+    {
+        return new ThreadDelegatingCallable<>(scope, scope.peekContext(), callable, true, pending);
+    }
+
+    private <T> List<ThreadDelegatingCallable<T>> wrap(final Collection<? extends Callable<T>> tasks)
+    {
+        // All tasks of one call share the captured context.
+        final ThreadDelegatedContext context = scope.peekContext();
+        final List<ThreadDelegatingCallable<T>> wrapped = new ArrayList<>(tasks.size());
+        try {
+            for (final Callable<T> task : tasks) {
+                wrapped.add(new ThreadDelegatingCallable<>(scope, context, task, true, pending));
+            }
+        }
+        catch (final IllegalArgumentException e) {
+            discard(wrapped);
+            throw e;
+        }
+        return wrapped;
+    }
+
+    /**
+     * Once invokeAll or invokeAny returned, the tasks that did not run never will.
+     */
+    private static void discard(final List<? extends ThreadDelegatingCallable<?>> tasks)
+    {
+        for (final ThreadDelegatingCallable<?> task : tasks) {
+            task.discard();
+        }
+    }
+
+    /**
+     * A future that releases the context of its task when it is cancelled before the task ran.
+     */
+    private static final class DiscardingFutureTask<T> extends FutureTask<T>
+    {
+        private final ThreadDelegatingCallable<T> task;
+
+        DiscardingFutureTask(final ThreadDelegatingCallable<T> task)
+        {
+            super(task);
+            this.task = task;
+        }
+
+        @Override
+        protected void done()
+        {
+            task.discard();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Runs a task in the context that was current when the task was created, and restores
+ * the previous context of the executing thread afterwards. A task created without a context
+ * runs in a fresh one, which is ended when the task is done.
+ * <p>
+ * The task retains its context until it has run, so a context that ends while the task is queued
+ * is destroyed only after the task. Code that drops a task without running it must not leave
+ * the context waiting for it; the executors of this package release it on rejection,
+ * cancellation and {@code shutdownNow()}.
+ */
+public class ThreadDelegatingRunnable implements Runnable
+{
+    private final ThreadDelegatedScope scope;
+    private final ThreadDelegatedContext context;
+    private final ContextReference reference;
+    private final Runnable delegate;
+    private final boolean repeating;
+
+    ThreadDelegatingRunnable(final ThreadDelegatedScope scope, @Nullable final ThreadDelegatedContext context, final Runnable delegate)
+    {
+        this(scope, context, delegate, true, null, false);
+    }
+
+    /**
+     * @param retain whether to retain the context until the (last) run
+     * @param pending where the executor keeps the references of tasks it may drop, if anywhere
+     * @param repeating whether the task runs periodically, so the context is retained until it fails or is cancelled
+     */
+    ThreadDelegatingRunnable(final ThreadDelegatedScope scope, @Nullable final ThreadDelegatedContext context, final Runnable delegate,
+            final boolean retain, @Nullable final Set<ContextReference> pending, final boolean repeating)
+    {
+        Preconditions.checkArgument(delegate != null, "task must not be null!");
+        this.scope = scope;
+        this.context = context;
+        this.delegate = delegate;
+        this.reference = retain ? ContextReference.retain(context, pending) : null;
+        this.repeating = repeating;
+    }
+
+    /**
+     * Captures the current context of the calling thread for the given task.
+     */
+    public static Runnable wrap(final ThreadDelegatedScope scope, final Runnable runnable)
+    {
+        return new ThreadDelegatingRunnable(scope, scope.peekContext(), runnable);
+    }
+
+    /**
+     * Captures the current context of the calling thread for the given task without retaining it,
+     * for schedulers that routinely dispose of tasks they will not run. A context destroyed before
+     * the task runs is entered empty.
+     */
+    public static Runnable wrapUnretained(final ThreadDelegatedScope scope, final Runnable runnable)
+    {
+        return new ThreadDelegatingRunnable(scope, scope.peekContext(), runnable, false, null, false);
+    }
+
+    /**
+     * Goes back to the given context, and ends the context that a task submitted without one
+     * created on this thread, if any.
+     */
+    static void endCreated(final ThreadDelegatedScope scope, @Nullable final ThreadDelegatedContext previous)
+    {
+        final ThreadDelegatedContext created = scope.peekContext();
+        scope.changeScope(previous);
+        if (created != null) {
+            created.end();
+        }
+    }
+
+    /**
+     * Releases the captured context for a task that will not run (again).
+     */
+    void discard()
+    {
+        ContextReference.release(reference);
+    }
+
+    @Override
+    public void run()
+    {
+        final ThreadDelegatedContext previous = scope.peekContext();
+        scope.changeScope(context);
+        try {
+            delegate.run();
+        }
+        catch (final RuntimeException | Error e) {
+            // A periodic task is not run again once it failed.
+            discard();
+            throw e;
+        }
+        finally {
+            if (context == null) {
+                endCreated(scope, previous);
+            }
+            else {
+                if (!repeating) {
+                    // Still bound, so destroying the context here happens inside it.
+                    discard();
+                }
+                scope.changeScope(previous);
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ThreadDelegating " + delegate;
+    }
+}
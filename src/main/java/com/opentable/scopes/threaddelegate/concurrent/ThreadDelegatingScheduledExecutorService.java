@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * A scheduled executor service that runs every task in the context of the thread that scheduled it.
+ * Periodic tasks enter that same context for each run, and retain it until they are cancelled,
+ * fail, or the service is shut down.
+ */
+public class ThreadDelegatingScheduledExecutorService extends ThreadDelegatingExecutorService implements ScheduledExecutorService
+{
+    private final ScheduledExecutorService delegate;
+
+    public ThreadDelegatingScheduledExecutorService(final ScheduledExecutorService delegate)
+    {
+        this(delegate, ThreadDelegatedScope.SCOPE);
+    }
+
+    public ThreadDelegatingScheduledExecutorService(final ScheduledExecutorService delegate, final ThreadDelegatedScope scope)
+    {
+        super(delegate, scope);
+        this.delegate = delegate;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit)
+    {
+        final ThreadDelegatingRunnable task = wrap(command);
+        return schedule(() -> delegate.schedule(task, delay, unit), task::discard);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit)
+    {
+        final ThreadDelegatingCallable<V> task = wrap(callable);
+        return schedule(() -> delegate.schedule(task, delay, unit), task::discard);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay, final long period, final TimeUnit unit)
+    {
+        final ThreadDelegatingRunnable task = wrap(command, true);
+        return schedule(() -> delegate.scheduleAtFixedRate(task, initialDelay, period, unit), task::discard);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay, final TimeUnit unit)
+    {
+        final ThreadDelegatingRunnable task = wrap(command, true);
+        return schedule(() -> delegate.scheduleWithFixedDelay(task, initialDelay, delay, unit), task::discard);
+    }
+
+    private static <V> ScheduledFuture<V> schedule(final Supplier<ScheduledFuture<V>> schedule, final Runnable discard)
+    {
+        try {
+            return new DiscardingFuture.Scheduled<>(schedule.get(), discard);
+        }
+        catch (final RejectedExecutionException e) {
+            discard.run();
+            throw e;
+        }
+    }
+}
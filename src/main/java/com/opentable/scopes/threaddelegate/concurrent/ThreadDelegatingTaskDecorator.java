@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+import org.springframework.core.task.TaskDecorator;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Runs tasks of a Spring task executor in the context of the thread that submitted them.
+ * Another decorator can be chained in, it is applied inside the context.
+ * <p>
+ * A decorated task retains its context until it runs; a cancelled future still runs its decorated
+ * task, which releases it. The executor does not tell the decorator about tasks it rejects or drops
+ * on {@code shutdownNow()}, so their contexts are never destroyed.
+ */
+public class ThreadDelegatingTaskDecorator implements TaskDecorator
+{
+    private final ThreadDelegatedScope scope;
+    private final TaskDecorator delegate;
+
+    public ThreadDelegatingTaskDecorator(final ThreadDelegatedScope scope)
+    {
+        this(scope, null);
+    }
+
+    public ThreadDelegatingTaskDecorator(final ThreadDelegatedScope scope, @Nullable final TaskDecorator delegate)
+    {
+        Preconditions.checkArgument(scope != null, "scope must not be null!");
+        this.scope = scope;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Runnable decorate(final Runnable runnable)
+    {
+        return ThreadDelegatingRunnable.wrap(scope, delegate == null ? runnable : delegate.decorate(runnable));
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * A thread pool that runs every task in the context of the thread that submitted it, and defers
+ * leaving that context: a worker stays in the context of its last task until it starts a task of
+ * another context or runs out of work. A worker draining ten tasks of one request fires a single
+ * ENTER and a single LEAVE, where {@link ThreadDelegatingExecutorService} fires ten of each.
+ * <p>
+ * The worker leaves its context right before it blocks waiting for work, and when it terminates.
+ * <p>
+ * A queued task retains its context until it has run, so the context outlives the submitter's
+ * {@code end()}; tasks that are rejected, cancelled, removed or dropped by {@link #shutdownNow()}
+ * release it instead.
+ */
+public class ThreadDelegatingThreadPoolExecutor extends ThreadPoolExecutor implements ThreadDelegatingExecutor
+{
+    private final ThreadDelegatedScope scope;
+
+    public ThreadDelegatingThreadPoolExecutor(final int corePoolSize, final int maximumPoolSize, final long keepAliveTime, final TimeUnit unit,
+                                              final BlockingQueue<Runnable> workQueue)
+    {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, Executors.defaultThreadFactory());
+    }
+
+    public ThreadDelegatingThreadPoolExecutor(final int corePoolSize, final int maximumPoolSize, final long keepAliveTime, final TimeUnit unit,
+                                              final BlockingQueue<Runnable> workQueue, final ThreadFactory threadFactory)
+    {
+        this(ThreadDelegatedScope.SCOPE, corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory);
+    }
+
+    public ThreadDelegatingThreadPoolExecutor(final ThreadDelegatedScope scope, final int corePoolSize, final int maximumPoolSize, final long keepAliveTime,
+                                              final TimeUnit unit, final BlockingQueue<Runnable> workQueue, final ThreadFactory threadFactory)
+    {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, new DeferredUnbindQueue(scope, workQueue), unbindOnExit(scope, threadFactory));
+        this.scope = scope;
+        setRejectedExecutionHandler(super.getRejectedExecutionHandler());
+    }
+
+    @Override
+    public void setRejectedExecutionHandler(final RejectedExecutionHandler handler)
+    {
+        Preconditions.checkArgument(handler != null, "handler must not be null!");
+        super.setRejectedExecutionHandler(new DiscardingHandler(handler));
+    }
+
+    @Override
+    public RejectedExecutionHandler getRejectedExecutionHandler()
+    {
+        return ((DiscardingHandler) super.getRejectedExecutionHandler()).delegate;
+    }
+
+    @Override
+    public boolean remove(final Runnable task)
+    {
+        final boolean removed = super.remove(task);
+        if (removed) {
+            discard(task);
+        }
+        return removed;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        final List<Runnable> dropped = super.shutdownNow();
+        for (final Runnable task : dropped) {
+            discard(task);
+        }
+        return dropped;
+    }
+
+    @Override
+    public void execute(final Runnable command)
+    {
+        Preconditions.checkArgument(command != null, "task must not be null!");
+        super.execute(command instanceof ContextFutureTask ? command : new ContextRunnable(scope, scope.peekContext(), command));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value)
+    {
+        return new ContextFutureTask<>(scope, scope.peekContext(), Executors.callable(runnable, value));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable)
+    {
+        return new ContextFutureTask<>(scope, scope.peekContext(), callable);
+    }
+
+    private static ThreadFactory unbindOnExit(final ThreadDelegatedScope scope, final ThreadFactory threadFactory)
+    {
+        Preconditions.checkArgument(scope != null, "scope must not be null!");
+        Preconditions.checkArgument(threadFactory != null, "thread factory must not be null!");
+        // A worker may exit without asking the queue for more work, e.g. on shutdown or when a task throws.
+        return worker -> threadFactory.newThread(() -> {
+            try {
+                worker.run();
+            }
+            finally {
+                scope.changeScope(null);
+            }
+        });
+    }
+
+    /**
+     * Releases the context of a task that will not run.
+     */
+    private static void discard(final Runnable task)
+    {
+        if (task instanceof ContextRunnable) {
+            ContextReference.release(((ContextRunnable) task).reference);
+        }
+        else if (task instanceof ContextFutureTask) {
+            ContextReference.release(((ContextFutureTask<?>) task).reference);
+        }
+    }
+
+    /**
+     * Releases the context of a rejected task, unless the handler ran it or queued it after all.
+     */
+    private static final class DiscardingHandler implements RejectedExecutionHandler
+    {
+        private final RejectedExecutionHandler delegate;
+
+        DiscardingHandler(final RejectedExecutionHandler delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void rejectedExecution(final Runnable task, final ThreadPoolExecutor executor)
+        {
+            try {
+                delegate.rejectedExecution(task, executor);
+            }
+            finally {
+                if (!executor.getQueue().contains(task)) {
+                    discard(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Enters the context of the task without leaving it afterwards.
+     */
+    private static final class ContextRunnable implements Runnable
+    {
+        private final ThreadDelegatedScope scope;
+        private final ThreadDelegatedContext context;
+        private final ContextReference reference;
+        private final Runnable delegate;
+
+        ContextRunnable(final ThreadDelegatedScope scope, final ThreadDelegatedContext context, final Runnable delegate)
+        {
+            this.scope = scope;
+            this.context = context;
+            this.reference = ContextReference.retain(context, null);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void run()
+        {
+            // Changing to the context the worker is already in does not fire any events.
+            scope.changeScope(context);
+            try {
+                delegate.run();
+            }
+            finally {
+                if (context == null) {
+                    ThreadDelegatingRunnable.endCreated(scope, null);
+                }
+                else {
+                    // The worker stays in the context, so this never destroys it under the task's feet.
+                    ContextReference.release(reference);
+                }
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "ThreadDelegating " + delegate;
+        }
+    }
+
+    /**
+     * The future of a submitted task, which enters the context of the task without leaving it afterwards.
+     */
+    private static final class ContextFutureTask<T> extends FutureTask<T>
+    {
+        private final ThreadDelegatedScope scope;
+        private final ThreadDelegatedContext context;
+        private final ContextReference reference;
+
+        ContextFutureTask(final ThreadDelegatedScope scope, final ThreadDelegatedContext context, final Callable<T> callable)
+        {
+            super(callable);
+            this.scope = scope;
+            this.context = context;
+            this.reference = ContextReference.retain(context, null);
+        }
+
+        /**
+         * Completed or cancelled: either way the task needs its context no more.
+         */
+        @Override
+        protected void done()
+        {
+            ContextReference.release(reference);
+        }
+
+        @Override
+        public void run()
+        {
+            if (isDone()) {
+                // Cancelled while queued; its context may be gone.
+                return;
+            }
+            scope.changeScope(context);
+            try {
+                super.run();
+            }
+            finally {
+                if (context == null) {
+                    ThreadDelegatingRunnable.endCreated(scope, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Leaves the current context before a worker blocks waiting for a task.
+     */
+    private static final class DeferredUnbindQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable>
+    {
+        private final ThreadDelegatedScope scope;
+        private final BlockingQueue<Runnable> delegate;
+
+        DeferredUnbindQueue(final ThreadDelegatedScope scope, final BlockingQueue<Runnable> delegate)
+        {
+            Preconditions.checkArgument(delegate != null, "work queue must not be null!");
+            this.scope = scope;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException
+        {
+            final Runnable next = delegate.poll();
+            if (next != null) {
+                return next;
+            }
+            scope.changeScope(null);
+            return delegate.take();
+        }
+
+        @Override
+        public Runnable poll(final long timeout, final TimeUnit unit) throws InterruptedException
+        {
+            final Runnable next = delegate.poll();
+            if (next != null) {
+                return next;
+            }
+            scope.changeScope(null);
+            return delegate.poll(timeout, unit);
+        }
+
+        @Override
+        public boolean offer(final Runnable runnable)
+        {
+            return delegate.offer(runnable);
+        }
+
+        @Override
+        public boolean offer(final Runnable runnable, final long timeout, final TimeUnit unit) throws InterruptedException
+        {
+            return delegate.offer(runnable, timeout, unit);
+        }
+
+        @Override
+        public void put(final Runnable runnable) throws InterruptedException
+        {
+            delegate.put(runnable);
+        }
+
+        @Override
+        public Runnable poll()
+        {
+            return delegate.poll();
+        }
+
+        @Override
+        public Runnable peek()
+        {
+            return delegate.peek();
+        }
+
+        @Override
+        public int remainingCapacity()
+        {
+            return delegate.remainingCapacity();
+        }
+
+        @Override
+        public int drainTo(final Collection<? super Runnable> collection)
+        {
+            return delegate.drainTo(collection);
+        }
+
+        @Override
+        public int drainTo(final Collection<? super Runnable> collection, final int maxElements)
+        {
+            return delegate.drainTo(collection, maxElements);
+        }
+
+        @Override
+        public boolean remove(final Object o)
+        {
+            return delegate.remove(o);
+        }
+
+        @Override
+        public boolean contains(final Object o)
+        {
+            return delegate.contains(o);
+        }
+
+        @Override
+        public Object[] toArray()
+        {
+            return delegate.toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(final T[] a)
+        {
+            return delegate.toArray(a);
+        }
+
+        @Override
+        public Iterator<Runnable> iterator()
+        {
+            return delegate.iterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return delegate.size();
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return delegate.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.reactive;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+
+import com.google.common.base.Preconditions;
+
+import reactor.core.CoreSubscriber;
+import reactor.core.Scannable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Operators;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+import com.opentable.scopes.threaddelegate.concurrent.ThreadDelegatingRunnable;
+
+/**
+ * Carries the context through Reactor pipelines.
+ * <p>
+ * The context of a pipeline lives in the Reactor {@link reactor.util.context.Context} under
+ * {@link #CONTEXT_KEY}. The thread binding is only touched where execution may hop threads. Once
+ * {@link #install() installed}:
+ * <ul>
+ * <li>Operators that may signal from another thread, e.g. sources completed by a Netty thread,
+ * {@code publishOn} or timers, bind the context of the pipeline while they signal downstream. That is
+ * the context in the Reactor context, or else the one bound when the pipeline was subscribed.</li>
+ * <li>Every task handed to a Reactor {@link reactor.core.scheduler.Scheduler} runs in the context
+ * that was bound when it was scheduled, which covers work done while subscribing on another thread.
+ * Schedulers dispose of many tasks without running them, e.g. timeouts, so these tasks do not
+ * retain the context.</li>
+ * </ul>
+ * Synchronous operators are left alone, so signals that stay on a thread do not pay anything.
+ */
+public class ThreadDelegatedReactorBridge implements AutoCloseable
+{
+    /** Key of the context in the Reactor context of a pipeline. */
+    public static final Class<ThreadDelegatedContext> CONTEXT_KEY = ThreadDelegatedContext.class;
+
+    private static final String HOOK_KEY = ThreadDelegatedReactorBridge.class.getName();
+
+    private final ThreadDelegatedScope scope;
+
+    public ThreadDelegatedReactorBridge(final ThreadDelegatedScope scope)
+    {
+        Preconditions.checkArgument(scope != null, "scope must not be null!");
+        this.scope = scope;
+    }
+
+    /**
+     * Installs the hooks. Tasks scheduled from a thread without a context are not wrapped, and
+     * neither are the subscribers of pipelines without one.
+     */
+    public void install()
+    {
+        Schedulers.onScheduleHook(HOOK_KEY, task -> scope.peekContext() == null ? task : ThreadDelegatingRunnable.wrapUnretained(scope, task));
+        Hooks.onEachOperator(HOOK_KEY, Operators.lift(
+                operator -> operator.scan(Scannable.Attr.RUN_STYLE) != Scannable.Attr.RunStyle.SYNC,
+                (operator, subscriber) -> {
+                    final ThreadDelegatedContext context = subscriber.currentContext().getOrDefault(CONTEXT_KEY, scope.peekContext());
+                    return context == null ? subscriber : new ContextSubscriber<>(scope, context, subscriber);
+                }));
+    }
+
+    @Override
+    public void close()
+    {
+        Hooks.resetOnEachOperator(HOOK_KEY);
+        Schedulers.resetOnScheduleHook(HOOK_KEY);
+    }
+
+    /**
+     * Subscribes to the publisher in the given context and puts the context into its Reactor context.
+     */
+    public <T> Mono<T> withContext(final Mono<T> mono, final ThreadDelegatedContext context)
+    {
+        return Mono.from(bind(mono.contextWrite(c -> c.put(CONTEXT_KEY, context)), context));
+    }
+
+    public <T> Flux<T> withContext(final Flux<T> flux, final ThreadDelegatedContext context)
+    {
+        return Flux.from(bind(flux.contextWrite(c -> c.put(CONTEXT_KEY, context)), context));
+    }
+
+    /**
+     * Returns the context of the pipeline this is part of, or an empty Mono outside of one.
+     */
+    public static Mono<ThreadDelegatedContext> context()
+    {
+        return Mono.deferContextual(c -> Mono.justOrEmpty(c.getOrEmpty(CONTEXT_KEY)));
+    }
+
+    private <T> Publisher<T> bind(final Publisher<T> publisher, final ThreadDelegatedContext context)
+    {
+        // Assembly work done while subscribing (and anything scheduled from it) runs in the context.
+        return subscriber -> {
+            final ThreadDelegatedContext previous = scope.peekContext();
+            scope.changeScope(context);
+            try {
+                publisher.subscribe(subscriber);
+            }
+            finally {
+                scope.changeScope(previous);
+            }
+        };
+    }
+
+    /**
+     * Signals downstream in the context of the pipeline, whichever thread they come from.
+     */
+    private static final class ContextSubscriber<T> implements CoreSubscriber<T>
+    {
+        private final ThreadDelegatedScope scope;
+        private final ThreadDelegatedContext context;
+        private final CoreSubscriber<? super T> actual;
+
+        ContextSubscriber(final ThreadDelegatedScope scope, final ThreadDelegatedContext context, final CoreSubscriber<? super T> actual)
+        {
+            this.scope = scope;
+            this.context = context;
+            this.actual = actual;
+        }
+
+        @Override
+        public Context currentContext()
+        {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(final Subscription subscription)
+        {
+            actual.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(final T value)
+        {
+            final ThreadDelegatedContext previous = scope.peekContext();
+            if (previous == context) {
+                actual.onNext(value);
+                return;
+            }
+            scope.changeScope(context);
+            try {
+                actual.onNext(value);
+            }
+            finally {
+                scope.changeScope(previous);
+            }
+        }
+
+        @Override
+        public void onError(final Throwable failure)
+        {
+            final ThreadDelegatedContext previous = scope.peekContext();
+            scope.changeScope(context);
+            try {
+                actual.onError(failure);
+            }
+            finally {
+                scope.changeScope(previous);
+            }
+        }
+
+        @Override
+        public void onComplete()
+        {
+            final ThreadDelegatedContext previous = scope.peekContext();
+            scope.changeScope(context);
+            try {
+                actual.onComplete();
+            }
+            finally {
+                scope.changeScope(previous);
+            }
+        }
+    }
+}
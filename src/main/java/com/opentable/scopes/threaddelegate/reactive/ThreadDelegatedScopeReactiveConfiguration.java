@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.reactive;
+
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScopeConfiguration;
+import com.opentable.scopes.threaddelegate.concurrent.ThreadDelegatingExecutorPostProcessor;
+
+/**
+ * Installs the ThreadDelegated Scope in a reactive application.
+ */
+@Configuration
+@Import(ThreadDelegatingScopeWebFilter.class)
+public class ThreadDelegatedScopeReactiveConfiguration
+{
+    @Bean
+    public static BeanFactoryPostProcessor getBeanFactoryPostProcessor() {
+        return ThreadDelegatedScopeConfiguration.getBeanFactoryPostProcessor();
+    }
+
+    @Bean
+    public static ThreadDelegatingExecutorPostProcessor getThreadDelegatingExecutorPostProcessor() {
+        return ThreadDelegatedScopeConfiguration.getThreadDelegatingExecutorPostProcessor();
+    }
+
+    @Bean
+    public ThreadDelegatedScope getThreadDelegatedScope() {
+        return ThreadDelegatedScope.SCOPE;
+    }
+
+    @Bean(initMethod = "install", destroyMethod = "close")
+    public ThreadDelegatedReactorBridge getThreadDelegatedReactorBridge(final ThreadDelegatedScope scope) {
+        return new ThreadDelegatedReactorBridge(scope);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.reactive;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import reactor.core.publisher.Mono;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * The reactive counterpart of {@link com.opentable.scopes.threaddelegate.servlet.ThreadDelegatingScopeFilter}:
+ * every exchange gets a fresh context, which is put into the Reactor context of the exchange and
+ * follows it across scheduler hops through the {@link ThreadDelegatedReactorBridge}. The context
+ * is ended once the exchange completes, fails or is cancelled.
+ */
+@Named
+public class ThreadDelegatingScopeWebFilter implements WebFilter
+{
+    public static final String THREAD_DELEGATED_CONTEXT = ThreadDelegatingScopeWebFilter.class.getName() + ".context";
+
+    private final ThreadDelegatedScope scope;
+    private final ThreadDelegatedReactorBridge bridge;
+
+    @Inject
+    ThreadDelegatingScopeWebFilter(final ThreadDelegatedScope scope, final ThreadDelegatedReactorBridge bridge)
+    {
+        this.scope = scope;
+        this.bridge = bridge;
+    }
+
+    @Override
+    public Mono<Void> filter(final ServerWebExchange exchange, final WebFilterChain chain)
+    {
+        return Mono.defer(() -> {
+            final ThreadDelegatedContext context = scope.newContext();
+            exchange.getAttributes().put(THREAD_DELEGATED_CONTEXT, context);
+            return bridge.withContext(Mono.defer(() -> chain.filter(exchange)), context)
+                    .doFinally(signal -> context.end());
+        });
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ReadListener;
+import javax.servlet.WriteListener;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Runs the callbacks of an asynchronous request in the context of the request. Each callback
+ * binds the context and restores whatever the container thread was in before afterwards.
+ */
+final class ContextBinding
+{
+    private final ThreadDelegatedScope scope;
+    private final ThreadDelegatedContext context;
+
+    ContextBinding(final ThreadDelegatedScope scope, final ThreadDelegatedContext context)
+    {
+        this.scope = scope;
+        this.context = context;
+    }
+
+    Runnable wrap(final Runnable task)
+    {
+        return () -> {
+            final ThreadDelegatedContext previous = enter();
+            try {
+                task.run();
+            }
+            finally {
+                scope.changeScope(previous);
+            }
+        };
+    }
+
+    ReadListener wrap(final ReadListener listener)
+    {
+        return new ReadListener() {
+            @Override
+            public void onDataAvailable() throws IOException
+            {
+                final ThreadDelegatedContext previous = enter();
+                try {
+                    listener.onDataAvailable();
+                }
+                finally {
+                    scope.changeScope(previous);
+                }
+            }
+
+            @Override
+            public void onAllDataRead() throws IOException
+            {
+                final ThreadDelegatedContext previous = enter();
+                try {
+                    listener.onAllDataRead();
+                }
+                finally {
+                    scope.changeScope(previous);
+                }
+            }
+
+            @Override
+            public void onError(final Throwable t)
+            {
+                final ThreadDelegatedContext previous = enter();
+                try {
+                    listener.onError(t);
+                }
+                finally {
+                    scope.changeScope(previous);
+                }
+            }
+        };
+    }
+
+    WriteListener wrap(final WriteListener listener)
+    {
+        return new WriteListener() {
+            @Override
+            public void onWritePossible() throws IOException
+            {
+                final ThreadDelegatedContext previous = enter();
+                try {
+                    listener.onWritePossible();
+                }
+                finally {
+                    scope.changeScope(previous);
+                }
+            }
+
+            @Override
+            public void onError(final Throwable t)
+            {
+                final ThreadDelegatedContext previous = enter();
+                try {
+                    listener.onError(t);
+                }
+                finally {
+                    scope.changeScope(previous);
+                }
+            }
+        };
+    }
+
+    private ThreadDelegatedContext enter()
+    {
+        final ThreadDelegatedContext previous = scope.peekContext();
+        scope.changeScope(context);
+        return previous;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.servlet;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Runs tasks started through {@link #start(Runnable)} in the context of the request.
+ */
+class ThreadDelegatingAsyncContext implements AsyncContext
+{
+    private final AsyncContext delegate;
+    private final ContextBinding binding;
+
+    ThreadDelegatingAsyncContext(final AsyncContext delegate, final ContextBinding binding)
+    {
+        this.delegate = delegate;
+        this.binding = binding;
+    }
+
+    AsyncContext getDelegate()
+    {
+        return delegate;
+    }
+
+    @Override
+    public void start(final Runnable run)
+    {
+        delegate.start(binding.wrap(run));
+    }
+
+    @Override
+    public ServletRequest getRequest()
+    {
+        return delegate.getRequest();
+    }
+
+    @Override
+    public ServletResponse getResponse()
+    {
+        return delegate.getResponse();
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse()
+    {
+        return delegate.hasOriginalRequestAndResponse();
+    }
+
+    @Override
+    public void dispatch()
+    {
+        delegate.dispatch();
+    }
+
+    @Override
+    public void dispatch(final String path)
+    {
+        delegate.dispatch(path);
+    }
+
+    @Override
+    public void dispatch(final ServletContext context, final String path)
+    {
+        delegate.dispatch(context, path);
+    }
+
+    @Override
+    public void complete()
+    {
+        delegate.complete();
+    }
+
+    @Override
+    public void addListener(final AsyncListener listener)
+    {
+        delegate.addListener(listener);
+    }
+
+    @Override
+    public void addListener(final AsyncListener listener, final ServletRequest servletRequest, final ServletResponse servletResponse)
+    {
+        delegate.addListener(listener, servletRequest, servletResponse);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(final Class<T> clazz) throws ServletException
+    {
+        return delegate.createListener(clazz);
+    }
+
+    @Override
+    public void setTimeout(final long timeout)
+    {
+        delegate.setTimeout(timeout);
+    }
+
+    @Override
+    public long getTimeout()
+    {
+        return delegate.getTimeout();
+    }
+}
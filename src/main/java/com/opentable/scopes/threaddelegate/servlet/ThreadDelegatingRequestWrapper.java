@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.servlet;
+
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+/**
+ * Keeps the context of the request attached when the request goes asynchronous. Until then the
+ * wrapper holds no context: starting async processing captures the context of the request (creating
+ * it if the request did not use the scope yet), stores it with the request and registers the listener
+ * that ends it. From then on tasks started on the async context and non-blocking read and write
+ * callbacks run in the context of the request.
+ */
+class ThreadDelegatingRequestWrapper extends HttpServletRequestWrapper
+{
+    private final ThreadDelegatedScope scope;
+    @Nullable
+    private final ThreadDelegatingResponseWrapper response;
+
+    /** Null until async processing starts. */
+    private ContextBinding binding;
+
+    private ThreadDelegatingAsyncContext asyncContext;
+    private ThreadDelegatingInputStream inputStream;
+
+    /**
+     * The binding is null for a request that did not go asynchronous yet, and the binding of its
+     * context for one that did, e.g. on an ASYNC dispatch.
+     */
+    ThreadDelegatingRequestWrapper(final HttpServletRequest request, final ThreadDelegatedScope scope, @Nullable final ThreadDelegatingResponseWrapper response,
+                                   @Nullable final ContextBinding binding)
+    {
+        super(request);
+        this.scope = scope;
+        this.response = response;
+        this.binding = binding;
+    }
+
+    @Override
+    public AsyncContext startAsync()
+    {
+        return started(super.startAsync());
+    }
+
+    @Override
+    public AsyncContext startAsync(final ServletRequest servletRequest, final ServletResponse servletResponse)
+    {
+        return started(super.startAsync(servletRequest, servletResponse));
+    }
+
+    @Override
+    public AsyncContext getAsyncContext()
+    {
+        final AsyncContext current = super.getAsyncContext();
+        return binding == null ? current : wrap(current);
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException
+    {
+        final ServletInputStream current = super.getInputStream();
+        if (inputStream == null || inputStream.delegate != current) {
+            inputStream = new ThreadDelegatingInputStream(current);
+        }
+        return inputStream;
+    }
+
+    private AsyncContext started(final AsyncContext started)
+    {
+        if (binding == null) {
+            // The request goes async for the first time, so its context must exist now to be shared.
+            final ThreadDelegatedContext context = scope.getContext();
+            setAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATED_CONTEXT, context);
+            binding = new ContextBinding(scope, context);
+            if (response != null) {
+                response.bind(binding);
+            }
+            // The listener registers itself again if async processing is restarted.
+            started.addListener(new ThreadDelegatingScopeFilter.EndListener(getRequest()));
+        }
+        return wrap(started);
+    }
+
+    private AsyncContext wrap(final AsyncContext delegate)
+    {
+        if (asyncContext == null || asyncContext.getDelegate() != delegate) {
+            asyncContext = new ThreadDelegatingAsyncContext(delegate, binding);
+        }
+        return asyncContext;
+    }
+
+    private class ThreadDelegatingInputStream extends ServletInputStream
+    {
+        private final ServletInputStream delegate;
+
+        ThreadDelegatingInputStream(final ServletInputStream delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void setReadListener(final ReadListener readListener)
+        {
+            // Non-blocking reads require async processing, so there is nothing to bind without it.
+            delegate.setReadListener(binding == null ? readListener : binding.wrap(readListener));
+        }
+        @Override
+        public boolean isFinished()
+        {
+            return delegate.isFinished();
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return delegate.isReady();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return delegate.read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            return delegate.read(b, off, len);
+        }
+
+        @Override
+        public int readLine(final byte[] b, final int off, final int len) throws IOException
+        {
+            return delegate.readLine(b, off, len);
+        }
+
+        @Override
+        public long skip(final long n) throws IOException
+        {
+            return delegate.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return delegate.available();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            delegate.close();
+        }
+    }
+}
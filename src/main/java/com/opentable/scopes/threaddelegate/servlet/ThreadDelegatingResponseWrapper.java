@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Runs non-blocking write callbacks in the context of the request, once the request went asynchronous.
+ */
+class ThreadDelegatingResponseWrapper extends HttpServletResponseWrapper
+{
+    /** Null until async processing starts. */
+    private ContextBinding binding;
+
+    private ThreadDelegatingOutputStream outputStream;
+
+    ThreadDelegatingResponseWrapper(final HttpServletResponse response)
+    {
+        super(response);
+    }
+
+    void bind(final ContextBinding binding)
+    {
+        this.binding = binding;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+        final ServletOutputStream current = super.getOutputStream();
+        if (outputStream == null || outputStream.delegate != current) {
+            outputStream = new ThreadDelegatingOutputStream(current);
+        }
+        return outputStream;
+    }
+
+    private class ThreadDelegatingOutputStream extends ServletOutputStream
+    {
+        private final ServletOutputStream delegate;
+
+        ThreadDelegatingOutputStream(final ServletOutputStream delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void setWriteListener(final WriteListener writeListener)
+        {
+            // Non-blocking writes require async processing, so there is nothing to bind without it.
+            delegate.setWriteListener(binding == null ? writeListener : binding.wrap(writeListener));
+        }
+        @Override
+        public boolean isReady()
+        {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            delegate.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            delegate.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            delegate.close();
+        }
+    }
+}
@@ -15,26 +15,44 @@ package com.opentable.scopes.threaddelegate.servlet;
 
 import java.io.IOException;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
 import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
 
+/**
+ * Runs every request in a fresh context, which is only created once the request looks up a scoped
+ * object, and ended when the request is done. A request that goes asynchronous keeps its context:
+ * when async processing starts it is stored in the {@link #THREAD_DELEGATED_CONTEXT} request attribute,
+ * bound again on every ASYNC dispatch, on tasks started through the {@link javax.servlet.AsyncContext}
+ * and on non-blocking read and write callbacks, and ended when the request completes, fails or times out.
+ * <p>
+ * Requests that do not support async processing are not wrapped, and nothing about the asynchronous
+ * case is set up before the request actually starts it.
+ */
 @Named
 public class ThreadDelegatingScopeFilter implements Filter
 {
     private static final Logger LOG = LoggerFactory.getLogger(ThreadDelegatingScopeFilter.class);
 
     public static final String THREAD_DELEGATING_SCOPE_ACTIVE = ThreadDelegatingScopeFilter.class.getName() + ".active";
+    public static final String THREAD_DELEGATED_CONTEXT = ThreadDelegatingScopeFilter.class.getName() + ".context";
 
     private final ThreadDelegatedScope scope;
 
@@ -47,6 +65,14 @@ public class ThreadDelegatingScopeFilter implements Filter
     @Override
     public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException
     {
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            final Object context = request.getAttribute(THREAD_DELEGATED_CONTEXT);
+            if (context instanceof ThreadDelegatedContext) {
+                doFilterAsync(request, response, chain, (ThreadDelegatedContext) context);
+                return;
+            }
+        }
+
         try {
             // chase out all objects that might be here, because the thread managed earlier to escape without
             // going though the LEAVE below. This is very unlikely to happen, though.
@@ -55,17 +81,88 @@ public class ThreadDelegatingScopeFilter implements Filter
 
             // Mark to the filters further down that the scope is now active.
             request.setAttribute(THREAD_DELEGATING_SCOPE_ACTIVE, Boolean.TRUE);
-            chain.doFilter(request, response);
+
+            if (request.isAsyncSupported()) {
+                doFilterWrapped(request, response, chain, null);
+            }
+            else {
+                chain.doFilter(request, response);
+            }
         }
         finally {
+            final ThreadDelegatedContext context = scope.peekContext();
+
             // All accumulated members (and listeners) will see a 'LEAVE' event now.
             scope.changeScope(null);
 
-            // Remove the marker from the request.
-            request.removeAttribute(THREAD_DELEGATING_SCOPE_ACTIVE);
+            // An asynchronous request lives on, it is ended by the listener registered when it went async.
+            if (!request.isAsyncStarted()) {
+                request.removeAttribute(THREAD_DELEGATING_SCOPE_ACTIVE);
+                if (context != null) {
+                    context.end();
+                }
+            }
+            else if (request.getAttribute(THREAD_DELEGATED_CONTEXT) == null) {
+                startedUnwrapped(request, context);
+            }
         }
     }
 
+    /**
+     * Async processing was started on the unwrapped request, so the wrapper never saw it. Store the
+     * context with the request and end it with the request, like the wrapper would have.
+     */
+    private static void startedUnwrapped(final ServletRequest request, @Nullable final ThreadDelegatedContext context)
+    {
+        if (context != null) {
+            request.setAttribute(THREAD_DELEGATED_CONTEXT, context);
+        }
+        try {
+            request.getAsyncContext().addListener(new EndListener(request));
+        }
+        catch (final IllegalStateException e) {
+            // The request already completed on another thread.
+            end(request);
+        }
+    }
+
+    private void doFilterAsync(final ServletRequest request, final ServletResponse response, final FilterChain chain, final ThreadDelegatedContext context) throws IOException, ServletException
+    {
+        scope.changeScope(context);
+        try {
+            doFilterWrapped(request, response, chain, new ContextBinding(scope, context));
+        }
+        finally {
+            // The request may still be running on other threads, leave it without ending it.
+            scope.changeScope(null);
+        }
+    }
+
+    private void doFilterWrapped(final ServletRequest request, final ServletResponse response, final FilterChain chain, @Nullable final ContextBinding binding)
+        throws IOException, ServletException
+    {
+        ThreadDelegatingResponseWrapper wrappedResponse = null;
+        if (response instanceof HttpServletResponse) {
+            wrappedResponse = new ThreadDelegatingResponseWrapper((HttpServletResponse) response);
+            wrappedResponse.bind(binding);
+        }
+        final ServletRequest wrappedRequest = request instanceof HttpServletRequest
+                ? new ThreadDelegatingRequestWrapper((HttpServletRequest) request, scope, wrappedResponse, binding)
+                : request;
+        chain.doFilter(wrappedRequest, wrappedResponse != null ? wrappedResponse : response);
+    }
+
+    private static void end(final ServletRequest request)
+    {
+        // Destroy the context, then remove the marker and the context from the request.
+        final Object context = request.getAttribute(THREAD_DELEGATED_CONTEXT);
+        if (context instanceof ThreadDelegatedContext) {
+            ((ThreadDelegatedContext) context).end();
+        }
+        request.removeAttribute(THREAD_DELEGATING_SCOPE_ACTIVE);
+        request.removeAttribute(THREAD_DELEGATED_CONTEXT);
+    }
+
     @Override
     public void init(final FilterConfig filterConfig) throws ServletException
     {
@@ -77,4 +174,44 @@ public class ThreadDelegatingScopeFilter implements Filter
     {
         LOG.info("ThreadDelegating scope destroyed");
     }
+
+    /**
+     * Ends the context of an asynchronous request once the request is done. Registered when the
+     * request first goes async (or by the filter once the chain returns, if async processing was
+     * started on the unwrapped request), and again by itself whenever async processing is restarted.
+     */
+    static class EndListener implements AsyncListener
+    {
+        private final ServletRequest request;
+
+        EndListener(final ServletRequest request)
+        {
+            this.request = request;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event)
+        {
+            end(request);
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event)
+        {
+            end(request);
+        }
+
+        @Override
+        public void onError(final AsyncEvent event)
+        {
+            end(request);
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event)
+        {
+            // Listeners are dropped when async processing is started again.
+            event.getAsyncContext().addListener(this);
+        }
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext.ScopeListener;
+
+// Counts the events it receives per event, from any number of threads
+public class EventCountingListener implements ScopeListener
+{
+    private final Set<ScopeEvent> subscribed;
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(ScopeEvent.values().length);
+
+    public EventCountingListener()
+    {
+        this(THREAD_EVENTS);
+    }
+
+    public EventCountingListener(final Set<ScopeEvent> subscribed)
+    {
+        this.subscribed = subscribed;
+    }
+
+    @Override
+    public Set<ScopeEvent> getSubscribedEvents()
+    {
+        return subscribed;
+    }
+
+    @Override
+    public void event(final ScopeEvent event)
+    {
+        counts.incrementAndGet(event.ordinal());
+    }
+
+    public int getCount(final ScopeEvent event)
+    {
+        return counts.get(event.ordinal());
+    }
+
+    public int getTotal()
+    {
+        int total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+}
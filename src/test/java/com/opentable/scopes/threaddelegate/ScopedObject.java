@@ -13,6 +13,7 @@
  */
 package com.opentable.scopes.threaddelegate;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Provider;
@@ -22,9 +23,11 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Scope;
 // Sample scoped object
 // Keep an atomic counter of how many times perform()  is called
+// Spring picks up close() as the destroy method of the bean
 public class ScopedObject
 {
     private final AtomicInteger performances = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     public ScopedObject()
     {
@@ -40,6 +43,16 @@ public class ScopedObject
         return performances.intValue();
     }
 
+    public void close()
+    {
+        closed.set(true);
+    }
+
+    public boolean isClosed()
+    {
+        return closed.get();
+    }
+
     // Tracks how many handouts there are, eg how many times this provider is called.
     public static class TestObjectProvider implements Provider<ScopedObject>
     {
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+// Keys are interned per name and each name gets its own slot
+public class TestScopeKey
+{
+    @Test
+    public void testSameNameSameKey()
+    {
+        final String name = UUID.randomUUID().toString();
+        final ScopeKey<Object> key = ScopeKey.of(name);
+
+        Assert.assertSame(key, ScopeKey.of(name));
+        Assert.assertSame(key, ScopeKey.find(name));
+        Assert.assertEquals(name, key.getName());
+    }
+
+    @Test
+    public void testDistinctSlots()
+    {
+        final ScopeKey<Object> key1 = ScopeKey.of(UUID.randomUUID().toString());
+        final ScopeKey<Object> key2 = ScopeKey.of(UUID.randomUUID().toString());
+
+        Assert.assertNotEquals(key1.getSlot(), key2.getSlot());
+        Assert.assertTrue(ScopeKey.slotCount() > Math.max(key1.getSlot(), key2.getSlot()));
+    }
+
+    // Looking for a name must not assign a slot
+    @Test
+    public void testFindUnknown()
+    {
+        final String name = UUID.randomUUID().toString();
+        Assert.assertNull(ScopeKey.find(name));
+        Assert.assertNull(ScopeKey.find(name));
+    }
+
+    // Past the cap names are rejected and the counter stays at the cap
+    @Test
+    public void testSlotCap()
+    {
+        final AtomicInteger counter = new AtomicInteger();
+        Assert.assertEquals(0, ScopeKey.nextSlot(counter, 2, "a"));
+        Assert.assertEquals(1, ScopeKey.nextSlot(counter, 2, "b"));
+        try {
+            ScopeKey.nextSlot(counter, 2, "c");
+            Assert.fail();
+        }
+        catch (final IllegalStateException expected) {
+            Assert.assertTrue(expected.getMessage().contains("'c'"));
+        }
+        Assert.assertEquals(2, counter.get());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNullName()
+    {
+        ScopeKey.of(null);
+    }
+}
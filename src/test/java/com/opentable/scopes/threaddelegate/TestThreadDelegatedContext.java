@@ -13,8 +13,13 @@
  */
 package com.opentable.scopes.threaddelegate;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.UUID;
+
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -163,4 +168,173 @@ public class TestThreadDelegatedContext
     {
         plate.containsKey(null);
     }
+
+    // Typed keys and names address the same slot
+    @Test
+    public void testKeyPut()
+    {
+        final ScopeKey<String> fooKey = ScopeKey.of(fooName);
+        plate.set(fooKey, "hallo");
+        Assert.assertEquals(1, plate.size());
+        Assert.assertTrue(plate.contains(fooKey));
+        Assert.assertEquals("hallo", plate.lookup(fooKey));
+        Assert.assertEquals("hallo", plate.get(fooName));
+
+        Assert.assertEquals("hallo", plate.remove(fooName));
+        Assert.assertFalse(plate.contains(fooKey));
+        Assert.assertEquals(0, plate.size());
+    }
+
+    // A key handed out after the context was created still works
+    @Test
+    public void testLateKey()
+    {
+        final ScopeKey<String> lateKey = ScopeKey.of(UUID.randomUUID().toString());
+        Assert.assertFalse(plate.contains(lateKey));
+        Assert.assertNull(plate.delete(lateKey));
+
+        plate.set(lateKey, "hallo");
+        Assert.assertEquals("hallo", plate.lookup(lateKey));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNullKeyRemove()
+    {
+        plate.remove(null);
+    }
+
+    // A child sees the objects of its parent, but keeps its own to itself
+    @Test
+    public void testChild()
+    {
+        plate.put(fooName, "hallo");
+        final ThreadDelegatedContext child = plate.fork();
+        Assert.assertSame(plate, child.getParent());
+        Assert.assertTrue(child.containsKey(fooName));
+        Assert.assertEquals("hallo", child.get(fooName));
+        Assert.assertEquals("hallo", child.getOrCreate(fooName, () -> "other"));
+        Assert.assertEquals(0, child.size());
+
+        child.put(barName, "welt");
+        Assert.assertEquals("welt", child.get(barName));
+        Assert.assertFalse(plate.containsKey(barName));
+        Assert.assertEquals("created", child.getOrCreate(bazName, () -> "created"));
+        Assert.assertFalse(plate.containsKey(bazName));
+
+        // Objects added to the parent later are visible as well.
+        plate.put(bazName, "parent");
+        Assert.assertEquals("created", child.get(bazName));
+        final ThreadDelegatedContext grandChild = child.fork();
+        Assert.assertEquals("created", grandChild.get(bazName));
+        Assert.assertEquals("hallo", grandChild.get(fooName));
+
+        // Removing from the child does not touch the parent.
+        Assert.assertNull(child.remove(fooName));
+        Assert.assertEquals("hallo", plate.get(fooName));
+    }
+
+    // A child overrides objects of its parent, removing the override uncovers the parent's again
+    @Test
+    public void testChildOverride()
+    {
+        plate.put(fooName, "parent");
+        final ThreadDelegatedContext child = plate.fork();
+        child.put(fooName, "child");
+        Assert.assertEquals("child", child.get(fooName));
+        Assert.assertEquals("parent", plate.get(fooName));
+        Assert.assertEquals(1, child.size());
+
+        Assert.assertEquals("child", child.remove(fooName));
+        Assert.assertEquals("parent", child.get(fooName));
+        Assert.assertEquals(0, child.size());
+    }
+
+    // Forking does not copy the objects of the parent
+    @Test
+    public void testForkDoesNotCopy()
+    {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        for (int i = 0; i < 1000; i++) {
+            plate.put(UUID.randomUUID().toString(), i);
+        }
+
+        final int forks = 1000;
+        final ThreadDelegatedContext[] children = new ThreadDelegatedContext[forks];
+        final long threadId = Thread.currentThread().getId();
+        final long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < forks; i++) {
+            children[i] = plate.fork();
+        }
+        final long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        // A few dozen bytes per fork, a copy of the parent would take several kilobytes.
+        Assert.assertTrue("Allocated " + allocated + " bytes for " + forks + " forks", allocated < forks * 100);
+        Assert.assertEquals(0, children[forks - 1].size());
+    }
+
+    // A snapshot keeps the objects of the moment it was taken and cannot be written to
+    @Test
+    public void testSnapshot()
+    {
+        plate.put(fooName, "hallo");
+        final ThreadDelegatedContext snapshot = plate.snapshot();
+        Assert.assertTrue(snapshot.isSnapshot());
+        Assert.assertFalse(plate.isSnapshot());
+        Assert.assertSame(snapshot, snapshot.snapshot());
+
+        plate.put(fooName, "welt");
+        plate.put(barName, "bar");
+        Assert.assertEquals("hallo", snapshot.get(fooName));
+        Assert.assertEquals("hallo", snapshot.getOrCreate(fooName, () -> "other"));
+        Assert.assertFalse(snapshot.containsKey(barName));
+        Assert.assertEquals(1, snapshot.size());
+
+        try {
+            snapshot.put(barName, "bar");
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            snapshot.getOrCreate(bazName, () -> "baz");
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            snapshot.remove(fooName);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+
+        // A fork of a snapshot is writable, its parent stays frozen.
+        final ThreadDelegatedContext fork = snapshot.fork();
+        Assert.assertEquals("hallo", fork.get(fooName));
+        Assert.assertEquals("baz", fork.getOrCreate(bazName, () -> "baz"));
+        Assert.assertFalse(snapshot.containsKey(bazName));
+    }
+
+    // A snapshot of a fork freezes its parents as well
+    @Test
+    public void testForkSnapshot()
+    {
+        plate.put(fooName, "hallo");
+        final ThreadDelegatedContext fork = plate.fork();
+        fork.put(barName, "bar");
+        final ThreadDelegatedContext snapshot = fork.snapshot();
+
+        plate.put(fooName, "welt");
+        fork.put(barName, "other");
+        Assert.assertEquals("hallo", snapshot.get(fooName));
+        Assert.assertEquals("bar", snapshot.get(barName));
+        Assert.assertTrue(snapshot.getParent().isSnapshot());
+    }
 }
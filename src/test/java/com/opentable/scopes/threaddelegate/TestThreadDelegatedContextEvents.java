@@ -13,6 +13,9 @@
  */
 package com.opentable.scopes.threaddelegate;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -118,4 +121,193 @@ public class TestThreadDelegatedContextEvents
         Assert.assertEquals(2, fooEventTest.getEventCount());
         Assert.assertEquals(ScopeEvent.LEAVE, fooEventTest.getLastEvent());
     }
+
+    // A listener put under two names is still only notified once per event
+    @Test
+    public void testSameListenerTwice()
+    {
+        final EventRecordingObject fooEventTest = new EventRecordingObject();
+
+        plate.put(fooName, fooEventTest);
+        plate.put(barName, fooEventTest);
+        Assert.assertEquals(2, fooEventTest.getEventCount());
+
+        plate.event(ScopeEvent.LEAVE);
+        Assert.assertEquals(3, fooEventTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.LEAVE, fooEventTest.getLastEvent());
+    }
+
+    // Events in a child reach the listeners of its parent, clearing the child does not
+    @Test
+    public void testChildEvent()
+    {
+        final EventRecordingObject parentEventTest = new EventRecordingObject();
+        plate.put(fooName, parentEventTest);
+        final ThreadDelegatedContext child = plate.fork();
+        final EventRecordingObject childEventTest = new EventRecordingObject();
+        child.put(barName, childEventTest);
+
+        child.event(ScopeEvent.LEAVE);
+        Assert.assertEquals(2, parentEventTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.LEAVE, parentEventTest.getLastEvent());
+        Assert.assertEquals(2, childEventTest.getEventCount());
+
+        plate.event(ScopeEvent.ENTER);
+        Assert.assertEquals(3, parentEventTest.getEventCount());
+        Assert.assertEquals(2, childEventTest.getEventCount());
+
+        child.clear();
+        Assert.assertEquals(3, parentEventTest.getEventCount());
+        Assert.assertEquals(3, childEventTest.getEventCount());
+    }
+
+    // A snapshot notifies the listeners that were in the context when it was taken
+    @Test
+    public void testSnapshotEvent()
+    {
+        final EventRecordingObject fooEventTest = new EventRecordingObject();
+        plate.put(fooName, fooEventTest);
+        final ThreadDelegatedContext snapshot = plate.snapshot();
+        final EventRecordingObject barEventTest = new EventRecordingObject();
+        plate.put(barName, barEventTest);
+
+        snapshot.event(ScopeEvent.LEAVE);
+        Assert.assertEquals(2, fooEventTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.LEAVE, fooEventTest.getLastEvent());
+        Assert.assertEquals(1, barEventTest.getEventCount());
+    }
+
+    // A lifecycle listener is created once, hears about forks, and is destroyed once when the context ends
+    @Test
+    public void testLifecycleEvents()
+    {
+        final LifecycleRecordingObject lifecycleTest = new LifecycleRecordingObject();
+        final EventRecordingObject fooEventTest = new EventRecordingObject();
+        plate.put(fooName, lifecycleTest);
+        plate.put(barName, fooEventTest);
+        Assert.assertEquals(2, lifecycleTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.CREATE, lifecycleTest.getFirstEvent());
+        Assert.assertEquals(ScopeEvent.ENTER, lifecycleTest.getLastEvent());
+
+        plate.put(barName, lifecycleTest);
+        Assert.assertEquals(3, lifecycleTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.ENTER, lifecycleTest.getLastEvent());
+
+        plate.fork();
+        Assert.assertEquals(4, lifecycleTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.FORK, lifecycleTest.getLastEvent());
+
+        Assert.assertFalse(plate.isEnded());
+        plate.end();
+        plate.end();
+        Assert.assertTrue(plate.isEnded());
+        Assert.assertEquals(5, lifecycleTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.DESTROY, lifecycleTest.getLastEvent());
+        Assert.assertEquals(1, fooEventTest.getEventCount());
+    }
+
+    // Ending a child destroys the listeners of the child only, forking a grandchild reaches all ancestors
+    @Test
+    public void testLifecycleChildEvents()
+    {
+        final LifecycleRecordingObject parentTest = new LifecycleRecordingObject();
+        plate.put(fooName, parentTest);
+        final ThreadDelegatedContext child = plate.fork();
+        final LifecycleRecordingObject childTest = new LifecycleRecordingObject();
+        child.put(barName, childTest);
+        Assert.assertEquals(3, parentTest.getEventCount());
+
+        child.fork();
+        Assert.assertEquals(4, parentTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.FORK, parentTest.getLastEvent());
+        Assert.assertEquals(3, childTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.FORK, childTest.getLastEvent());
+
+        child.end();
+        Assert.assertEquals(ScopeEvent.DESTROY, childTest.getLastEvent());
+        Assert.assertEquals(4, parentTest.getEventCount());
+        Assert.assertFalse(plate.isEnded());
+    }
+
+    // A snapshot can not be ended
+    @Test(expected = IllegalStateException.class)
+    public void testSnapshotEnd()
+    {
+        plate.snapshot().end();
+    }
+
+    // A listener only receives the events it subscribed to
+    @Test
+    public void testSubscribedEvents()
+    {
+        final SubscribingRecordingObject destroyTest = new SubscribingRecordingObject(EnumSet.of(ScopeEvent.DESTROY));
+        final SubscribingRecordingObject leaveTest = new SubscribingRecordingObject(EnumSet.of(ScopeEvent.LEAVE));
+        plate.put(fooName, destroyTest);
+        plate.put(barName, leaveTest);
+        Assert.assertEquals(0, destroyTest.getEventCount());
+        Assert.assertEquals(0, leaveTest.getEventCount());
+
+        plate.event(ScopeEvent.ENTER);
+        plate.fork();
+        Assert.assertEquals(0, destroyTest.getEventCount());
+        Assert.assertEquals(0, leaveTest.getEventCount());
+
+        plate.event(ScopeEvent.LEAVE);
+        Assert.assertEquals(0, destroyTest.getEventCount());
+        Assert.assertEquals(1, leaveTest.getEventCount());
+
+        plate.end();
+        Assert.assertEquals(1, destroyTest.getEventCount());
+        Assert.assertEquals(ScopeEvent.DESTROY, destroyTest.getLastEvent());
+        Assert.assertEquals(1, leaveTest.getEventCount());
+    }
+
+    // The subscription is read when the listener is put, later changes do not count
+    @Test
+    public void testSubscriptionReadOnPut()
+    {
+        final SubscribingRecordingObject eventTest = new SubscribingRecordingObject(EnumSet.of(ScopeEvent.LEAVE));
+        plate.put(fooName, eventTest);
+        eventTest.subscribed = EnumSet.of(ScopeEvent.ENTER);
+
+        plate.event(ScopeEvent.ENTER);
+        Assert.assertEquals(0, eventTest.getEventCount());
+        plate.event(ScopeEvent.LEAVE);
+        Assert.assertEquals(1, eventTest.getEventCount());
+    }
+
+    private static class SubscribingRecordingObject extends EventRecordingObject
+    {
+        private Set<ScopeEvent> subscribed;
+
+        SubscribingRecordingObject(final Set<ScopeEvent> subscribed)
+        {
+            this.subscribed = subscribed;
+        }
+
+        @Override
+        public Set<ScopeEvent> getSubscribedEvents()
+        {
+            return subscribed;
+        }
+    }
+
+    private static class LifecycleRecordingObject extends EventRecordingObject implements ThreadDelegatedContext.LifecycleListener
+    {
+        private ScopeEvent firstEvent = null;
+
+        @Override
+        public void event(final ScopeEvent event)
+        {
+            if (firstEvent == null) {
+                firstEvent = event;
+            }
+            super.event(event);
+        }
+
+        ScopeEvent getFirstEvent()
+        {
+            return firstEvent;
+        }
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+// The storage backends bind contexts to threads; the scope works the same on top of each of them
+public class TestThreadDelegatedContextStorage
+{
+    @Test
+    public void testForName()
+    {
+        Assert.assertTrue(ThreadDelegatedContextStorage.forName(ThreadDelegatedContextStorage.THREAD_LOCAL)
+                instanceof ThreadLocalContextStorage);
+        Assert.assertTrue(ThreadDelegatedContextStorage.forName(ThreadDelegatedContextStorage.INHERITABLE_THREAD_LOCAL)
+                instanceof ThreadLocalContextStorage);
+        Assert.assertTrue(ThreadDelegatedContextStorage.forName(TestStorage.class.getName()) instanceof TestStorage);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testForUnknownName()
+    {
+        ThreadDelegatedContextStorage.forName("no.such.Storage");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testForWrongClass()
+    {
+        ThreadDelegatedContextStorage.forName(String.class.getName());
+    }
+
+    // A thread started from a thread with a context does not see that context
+    @Test
+    public void testThreadLocal() throws Exception
+    {
+        final ThreadDelegatedScope scope = new ThreadDelegatedScope(ThreadDelegatedContextStorage.threadLocal());
+        final ThreadDelegatedContext plate = scope.getContext();
+
+        Assert.assertNull(contextOfNewThread(scope));
+        Assert.assertSame(plate, scope.peekContext());
+        scope.changeScope(null);
+    }
+
+    // ... unless the storage is inheritable
+    @Test
+    public void testInheritableThreadLocal() throws Exception
+    {
+        final ThreadDelegatedScope scope = new ThreadDelegatedScope(ThreadDelegatedContextStorage.inheritableThreadLocal());
+        final ThreadDelegatedContext plate = scope.getContext();
+
+        Assert.assertSame(plate, contextOfNewThread(scope));
+        scope.changeScope(null);
+        Assert.assertNull(contextOfNewThread(scope));
+    }
+
+    // An inherited context is not counted: the new thread neither keeps it alive nor releases it when leaving
+    @Test
+    public void testInheritedContextNotCounted() throws Exception
+    {
+        final ThreadDelegatedScope scope = new ThreadDelegatedScope(ThreadDelegatedContextStorage.inheritableThreadLocal());
+        final ThreadDelegatedContext plate = scope.getContext();
+        final CountDownLatch inherited = new CountDownLatch(1);
+        final CountDownLatch ended = new CountDownLatch(1);
+        final AtomicBoolean destroyedInThread = new AtomicBoolean();
+        final Thread thread = new Thread(() -> {
+            try {
+                inherited.countDown();
+                ended.await(5, TimeUnit.SECONDS);
+                destroyedInThread.set(plate.isDestroyed());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scope.changeScope(null);
+        });
+        thread.start();
+        Assert.assertTrue(inherited.await(1, TimeUnit.SECONDS));
+
+        // Leaving in the new thread must not release the reference of this thread.
+        final ThreadDelegatedContext other = scope.newContext();
+        final Thread leaving = new Thread(() -> scope.changeScope(null));
+        leaving.start();
+        leaving.join(1000);
+        plate.end();
+        Assert.assertFalse(plate.isDestroyed());
+
+        // Once this thread leaves, the context is gone although the new thread still sees it.
+        scope.changeScope(other);
+        Assert.assertTrue(plate.isDestroyed());
+        ended.countDown();
+        thread.join(1000);
+        Assert.assertFalse("Thread got stuck!", thread.isAlive());
+        Assert.assertTrue(destroyedInThread.get());
+        scope.changeScope(null);
+    }
+
+    // A custom backend gets all bindings of the scope
+    @Test
+    public void testCustomStorage()
+    {
+        final TestStorage storage = new TestStorage();
+        final ThreadDelegatedScope scope = new ThreadDelegatedScope(storage);
+
+        final ThreadDelegatedContext plate = scope.getContext();
+        Assert.assertSame(plate, storage.context);
+
+        scope.changeScope(null);
+        Assert.assertNull(storage.context);
+    }
+
+    private static ThreadDelegatedContext contextOfNewThread(final ThreadDelegatedScope scope) throws InterruptedException
+    {
+        final AtomicReference<ThreadDelegatedContext> holder = new AtomicReference<>();
+        final Thread thread = new Thread(() -> holder.set(scope.peekContext()));
+        thread.start();
+        thread.join(1000);
+        Assert.assertFalse("Thread got stuck!", thread.isAlive());
+        return holder.get();
+    }
+
+    // Good enough for one thread
+    public static class TestStorage implements ThreadDelegatedContextStorage
+    {
+        private ThreadDelegatedContext context;
+
+        @Override
+        public ThreadDelegatedContext get()
+        {
+            return context;
+        }
+
+        @Override
+        public void set(final ThreadDelegatedContext context)
+        {
+            this.context = context;
+        }
+
+        @Override
+        public void remove()
+        {
+            this.context = null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.BasicMDCAdapter;
+
+// The MDC of a thread follows the context it is in, touching only keys that change
+public class TestThreadDelegatedMdc
+{
+    private ThreadDelegatedScope scope = null;
+    private RecordingMDCAdapter mdc = null;
+
+    @Before
+    public void setUp()
+    {
+        scope = new ThreadDelegatedScope();
+        mdc = new RecordingMDCAdapter();
+    }
+
+    @After
+    public void tearDown()
+    {
+        scope.changeScope(null);
+        mdc.clear();
+    }
+
+    @Test
+    public void testPut()
+    {
+        final ThreadDelegatedMdc values = ThreadDelegatedMdc.current(scope, mdc);
+        values.put("requestId", "1");
+        Assert.assertEquals("1", mdc.get("requestId"));
+        Assert.assertEquals("1", values.get("requestId"));
+
+        values.remove("requestId");
+        Assert.assertNull(mdc.get("requestId"));
+        Assert.assertTrue(values.getValues().isEmpty());
+    }
+
+    @Test
+    public void testHops()
+    {
+        ThreadDelegatedMdc.current(scope, mdc).put("requestId", "1");
+        ThreadDelegatedMdc.current(scope, mdc).put("user", "a");
+        final ThreadDelegatedContext first = scope.getContext();
+
+        scope.changeScope(null);
+        Assert.assertNull(mdc.get("requestId"));
+        Assert.assertNull(mdc.get("user"));
+
+        // Other MDC keys are left alone.
+        mdc.put("other", "x");
+        scope.changeScope(first);
+        Assert.assertEquals("1", mdc.get("requestId"));
+        Assert.assertEquals("a", mdc.get("user"));
+        Assert.assertEquals("x", mdc.get("other"));
+
+        // A second context sharing a key: only the changed key is written.
+        scope.changeScope(null);
+        ThreadDelegatedMdc.current(scope, mdc).put("requestId", "2");
+        ThreadDelegatedMdc.current(scope, mdc).put("user", "a");
+        final ThreadDelegatedContext second = scope.getContext();
+        scope.changeScope(first);
+
+        mdc.writes = 0;
+        scope.changeScope(second);
+        Assert.assertEquals("2", mdc.get("requestId"));
+        Assert.assertEquals("a", mdc.get("user"));
+        Assert.assertEquals(1, mdc.writes);
+
+        // Hopping back and forth between the same contexts keeps writing only the difference.
+        mdc.writes = 0;
+        for (int i = 0; i < 10; i++) {
+            scope.changeScope(first);
+            scope.changeScope(second);
+        }
+        Assert.assertEquals(20, mdc.writes);
+    }
+
+    // A forked context shares the values of its parent, entering it does not touch the MDC
+    @Test
+    public void testFork()
+    {
+        ThreadDelegatedMdc.current(scope, mdc).put("requestId", "1");
+        final ThreadDelegatedContext parent = scope.getContext();
+        final ThreadDelegatedContext child = parent.fork();
+
+        mdc.writes = 0;
+        scope.changeScope(child);
+        scope.changeScope(parent);
+        Assert.assertEquals(0, mdc.writes);
+        Assert.assertEquals("1", mdc.get("requestId"));
+    }
+
+    private static class RecordingMDCAdapter extends BasicMDCAdapter
+    {
+        private int writes = 0;
+
+        @Override
+        public void put(final String key, final String val)
+        {
+            writes++;
+            super.put(key, val);
+        }
+
+        @Override
+        public void remove(final String key)
+        {
+            writes++;
+            super.remove(key);
+        }
+    }
+}
@@ -13,10 +13,19 @@
  */
 package com.opentable.scopes.threaddelegate;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.beans.factory.ObjectFactory;
 
 import com.opentable.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
 
@@ -57,6 +66,18 @@ public class TestThreadDelegatedScope
         Assert.assertSame(plate, plate2);
     }
 
+    // Removing from a thread without a context does not create one
+    @Test
+    public void testRemoveWithoutContext()
+    {
+        Assert.assertNull(scope.peekContext());
+        Assert.assertNull(scope.remove(fooName));
+        Assert.assertNull(scope.peekContext());
+
+        final ThreadDelegatedContext plate = scope.getContext();
+        Assert.assertSame(plate, scope.peekContext());
+    }
+
     // We get a new context and show when we call changeScope(null), the next context handed out is not the same
     @Test
     public void testScopeLeave()
@@ -121,6 +142,43 @@ public class TestThreadDelegatedScope
         Assert.assertEquals(ScopeEvent.LEAVE, fooEventTest.getLastEvent());
     }
 
+    // Listeners hearing LEAVE still find the thread in the context it leaves, and are told the one it moves to
+    @Test
+    public void testContextDuringLeave()
+    {
+        final AtomicReference<ThreadDelegatedContext> seen = new AtomicReference<>();
+        final AtomicReference<ThreadDelegatedContext> next = new AtomicReference<>();
+        final ThreadDelegatedContext plate = scope.newContext();
+        final ThreadDelegatedContext other = scope.newContext();
+        scope.changeScope(plate);
+        scope.get(fooName, () -> new ThreadDelegatedContext.ScopeListener() {
+            @Override
+            public void event(final ScopeEvent event)
+            {
+                Assert.fail();
+            }
+
+            @Override
+            public void event(final ScopeEvent event, final ThreadDelegatedContext nextContext)
+            {
+                if (event == ScopeEvent.LEAVE) {
+                    seen.set(scope.getContext());
+                    next.set(nextContext);
+                }
+            }
+        });
+
+        scope.changeScope(other);
+        Assert.assertSame(plate, seen.get());
+        Assert.assertSame(other, next.get());
+
+        scope.changeScope(plate);
+        scope.changeScope(null);
+        Assert.assertSame(plate, seen.get());
+        Assert.assertNull(next.get());
+        Assert.assertNull(scope.peekContext());
+    }
+
     @Test
     public void testScopeEnterLeaveEvents()
     {
@@ -184,4 +242,238 @@ public class TestThreadDelegatedScope
         Assert.assertEquals(ScopeEvent.ENTER, fooEventTest.getLastEvent());
     }
 
+    // Looking up an object that is already in the context (what every scoped proxy call does)
+    // must not allocate. Measured with the per thread allocation counter of the JVM.
+    @Test
+    public void testGetDoesNotAllocate()
+    {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        final ObjectFactory<ScopedObject> objectFactory = ScopedObject::new;
+        final Object testObject = scope.get(fooName, objectFactory);
+
+        int lookups = 100_000;
+        // Let the JIT settle first.
+        for (int i = 0; i < lookups; i++) {
+            Assert.assertSame(testObject, scope.get(fooName, objectFactory));
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < lookups; i++) {
+            if (scope.get(fooName, objectFactory) != testObject) {
+                Assert.fail();
+            }
+        }
+        final long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        // Allow for some noise from the measurement itself, but not for a single byte per lookup.
+        Assert.assertTrue("Allocated " + allocated + " bytes for " + lookups + " lookups", allocated < lookups / 10);
+    }
+
+    // A lazy listener hears about a thread only once the thread uses the scope
+    @Test
+    public void testLazyListener()
+    {
+        final LazyEventRecordingObject lazy = (LazyEventRecordingObject) scope.get("lazy", LazyEventRecordingObject::new);
+        final EventRecordingObject eager = (EventRecordingObject) scope.get("eager", EventRecordingObject::new);
+        final ThreadDelegatedContext plate = scope.getContext();
+        Assert.assertEquals(1, lazy.getEventCount());
+        Assert.assertEquals(ScopeEvent.ENTER, lazy.getLastEvent());
+
+        scope.changeScope(null);
+        Assert.assertEquals(2, lazy.getEventCount());
+        Assert.assertEquals(ScopeEvent.LEAVE, lazy.getLastEvent());
+        Assert.assertEquals(2, eager.getEventCount());
+
+        // A hop that does not touch the scope: the eager listener hears about it, the lazy one does not.
+        scope.changeScope(plate);
+        scope.changeScope(null);
+        Assert.assertEquals(2, lazy.getEventCount());
+        Assert.assertEquals(4, eager.getEventCount());
+
+        // The first lookup sends ENTER, later ones do not.
+        scope.changeScope(plate);
+        scope.get(fooName, ScopedObject::new);
+        scope.get(fooName, ScopedObject::new);
+        Assert.assertEquals(3, lazy.getEventCount());
+        Assert.assertEquals(ScopeEvent.ENTER, lazy.getLastEvent());
+        scope.changeScope(null);
+        Assert.assertEquals(4, lazy.getEventCount());
+        Assert.assertEquals(ScopeEvent.LEAVE, lazy.getLastEvent());
+
+        // So does an explicit activation.
+        scope.changeScope(plate);
+        scope.activate();
+        scope.activate();
+        Assert.assertEquals(5, lazy.getEventCount());
+        scope.changeScope(null);
+        Assert.assertEquals(6, lazy.getEventCount());
+        Assert.assertEquals(8, eager.getEventCount());
+    }
+
+    // A thread forgets that it activated a context when it leaves, even if the context lost its lazy listeners meanwhile
+    @Test
+    public void testDeactivateWithoutLazyListeners()
+    {
+        scope.get("lazy", LazyEventRecordingObject::new);
+        final ThreadDelegatedContext plate = scope.getContext();
+        plate.clear();
+        scope.changeScope(null);
+
+        // Put from elsewhere, so this thread has not activated the context for it.
+        final LazyEventRecordingObject lazy = new LazyEventRecordingObject();
+        plate.put("lazy", lazy);
+        Assert.assertEquals(1, lazy.getEventCount());
+
+        scope.changeScope(plate);
+        scope.activate();
+        Assert.assertEquals(2, lazy.getEventCount());
+        Assert.assertEquals(ScopeEvent.ENTER, lazy.getLastEvent());
+    }
+
+    // Destruction callbacks run once the context was ended and the last thread left it
+    @Test
+    public void testDestructionCallback()
+    {
+        final AtomicInteger destroyed = new AtomicInteger();
+        final ThreadDelegatedContext plate = scope.newContext();
+        scope.changeScope(plate);
+        scope.get(fooName, ScopedObject::new);
+        scope.registerDestructionCallback(fooName, destroyed::incrementAndGet);
+
+        plate.end();
+        Assert.assertTrue(plate.isEnded());
+        Assert.assertFalse(plate.isDestroyed());
+        Assert.assertEquals(0, destroyed.get());
+
+        scope.changeScope(null);
+        Assert.assertTrue(plate.isDestroyed());
+        Assert.assertEquals(1, destroyed.get());
+
+        scope.changeScope(plate);
+        scope.changeScope(null);
+        Assert.assertEquals(1, destroyed.get());
+    }
+
+    // Destruction callbacks run while the thread is still in the context, and see its other objects
+    @Test
+    public void testDestructionSeesContext()
+    {
+        final AtomicReference<Object> seen = new AtomicReference<>();
+        final ThreadDelegatedContext plate = scope.getContext();
+        final Object bar = scope.get("bar", ScopedObject::new);
+        scope.get(fooName, ScopedObject::new);
+        scope.registerDestructionCallback(fooName, () -> seen.set(scope.get("bar", ScopedObject::new)));
+        plate.end();
+
+        scope.changeScope(null);
+        Assert.assertTrue(plate.isDestroyed());
+        Assert.assertSame(bar, seen.get());
+        Assert.assertNull(scope.peekContext());
+    }
+
+    // A thread in a snapshot keeps the context it was taken from alive
+    @Test
+    public void testDestructionSnapshot()
+    {
+        final AtomicInteger destroyed = new AtomicInteger();
+        final ThreadDelegatedContext plate = scope.getContext();
+        scope.get(fooName, ScopedObject::new);
+        scope.registerDestructionCallback(fooName, destroyed::incrementAndGet);
+
+        scope.changeScope(plate.snapshot());
+        plate.end();
+        Assert.assertFalse(plate.isDestroyed());
+        Assert.assertNotNull(scope.get(fooName, ScopedObject::new));
+
+        scope.changeScope(null);
+        Assert.assertTrue(plate.isDestroyed());
+        Assert.assertEquals(1, destroyed.get());
+    }
+
+    // A snapshot bound after its context was destroyed does not hand out the destroyed objects
+    @Test
+    public void testSnapshotOfDestroyed()
+    {
+        final ThreadDelegatedContext plate = scope.getContext();
+        scope.get(fooName, ScopedObject::new);
+        final ThreadDelegatedContext snapshot = plate.snapshot();
+        scope.changeScope(null);
+        plate.end();
+        Assert.assertTrue(plate.isDestroyed());
+
+        scope.changeScope(snapshot);
+        try {
+            scope.get(fooName, ScopedObject::new);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        finally {
+            scope.changeScope(null);
+        }
+    }
+
+    // A context that no thread is bound to is destroyed when it ends, removed objects are not destroyed
+    @Test
+    public void testDestructionCallbackRemoved()
+    {
+        final AtomicInteger destroyed = new AtomicInteger();
+        final ThreadDelegatedContext plate = scope.getContext();
+        scope.get(fooName, ScopedObject::new);
+        scope.registerDestructionCallback(fooName, destroyed::incrementAndGet);
+        scope.get("bar", ScopedObject::new);
+        scope.registerDestructionCallback("bar", destroyed::incrementAndGet);
+        scope.remove(fooName);
+        scope.changeScope(null);
+        Assert.assertFalse(plate.isDestroyed());
+
+        plate.end();
+        Assert.assertTrue(plate.isDestroyed());
+        Assert.assertEquals(1, destroyed.get());
+    }
+
+    // The last thread to leave runs the callbacks, a thread in a fork keeps the parent alive
+    @Test
+    public void testDestructionOnLastThread() throws Exception
+    {
+        final AtomicReference<Thread> destroyer = new AtomicReference<>();
+        final ThreadDelegatedContext plate = scope.newContext();
+        scope.changeScope(plate);
+        scope.registerDestructionCallback(fooName, () -> destroyer.set(Thread.currentThread()));
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch ended = new CountDownLatch(1);
+        final Thread thread = new Thread(() -> {
+            scope.changeScope(plate.fork());
+            entered.countDown();
+            try {
+                ended.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scope.changeScope(null);
+        });
+        thread.start();
+        Assert.assertTrue(entered.await(1, TimeUnit.SECONDS));
+
+        plate.end();
+        scope.changeScope(null);
+        Assert.assertNull(destroyer.get());
+
+        ended.countDown();
+        thread.join();
+        Assert.assertSame(thread, destroyer.get());
+        Assert.assertTrue(plate.isDestroyed());
+    }
+
+    private static class LazyEventRecordingObject extends EventRecordingObject implements ThreadDelegatedContext.LazyScopeListener
+    {
+    }
 }
@@ -54,6 +54,14 @@ public class TestThreadDelegatedScopeConfiguration
         Assert.assertSame(ThreadDelegatedScope.SCOPE, scope);
     }
 
+    // The post processor hands out slots for all beans in the scope
+    @Test
+    public void testScopeKeysRegistered()
+    {
+        getScopedObjectBeanFactory();
+        Assert.assertNotNull(ScopeKey.find("getScopedObject"));
+    }
+
     // Getting the same object repeatedly - minus scope changes returns the same object
     @Test
     public void testScopedObject()
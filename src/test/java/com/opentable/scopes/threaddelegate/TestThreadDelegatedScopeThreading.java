@@ -13,8 +13,11 @@
  */
 package com.opentable.scopes.threaddelegate;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Provider;
 
@@ -105,4 +108,112 @@ public class TestThreadDelegatedScopeThreading
         Assert.assertEquals(1, TestObjectProvider.getHandouts());
         Assert.assertEquals(threadCount, scopedProvider.get().getPerformances());
     }
+
+    // A slow factory for one name holds up neither the lookup nor the creation of other names
+    @Test
+    public void testSlowCreationDoesNotBlockOtherNames() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Provider<ScopedObject> slowProvider = scope.provider("slow", () -> {
+            started.countDown();
+            awaitUninterruptibly(release);
+            return new ScopedObject();
+        });
+        final Provider<ScopedObject> scopedProvider = scope.provider(fooName, new TestObjectProvider());
+
+        final ThreadDelegatedContext parentPlate = scope.getContext();
+        final Thread slowThread = new Thread(() ->
+        {
+            scope.changeScope(parentPlate);
+            slowProvider.get();
+            scope.changeScope(null);
+        });
+        slowThread.start();
+
+        Assert.assertTrue("Slow creation never started!", started.await(1, TimeUnit.SECONDS));
+
+        // The slow creation is still in flight on the same context
+        final ScopedObject testObject = scopedProvider.get();
+        Assert.assertNotNull(testObject);
+        Assert.assertSame(testObject, scopedProvider.get());
+        Assert.assertEquals(1, TestObjectProvider.getHandouts());
+
+        release.countDown();
+        slowThread.join(1000);
+        Assert.assertFalse("Slow thread got stuck!", slowThread.isAlive());
+    }
+
+    // Threads asking for the same name while it is created wait for that one creation
+    @Test
+    public void testConcurrentCreationOfSameName() throws Exception
+    {
+        final AtomicInteger creations = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Provider<ScopedObject> slowProvider = scope.provider(fooName, () -> {
+            creations.incrementAndGet();
+            started.countDown();
+            awaitUninterruptibly(release);
+            return new ScopedObject();
+        });
+
+        final ThreadDelegatedContext parentPlate = scope.getContext();
+        final Set<ScopedObject> handedOut = ConcurrentHashMap.newKeySet();
+
+        int threadCount = 10;
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int i = 0 ; i < threadCount; i++) {
+            new Thread(() ->
+            {
+                scope.changeScope(parentPlate);
+                handedOut.add(slowProvider.get());
+                scope.changeScope(null);
+                latch.countDown();
+            }).start();
+        }
+
+        Assert.assertTrue("Creation never started!", started.await(1, TimeUnit.SECONDS));
+        release.countDown();
+
+        Assert.assertTrue("Some threads got stuck!", latch.await(1, TimeUnit.SECONDS));
+
+        Assert.assertEquals(1, creations.get());
+        Assert.assertEquals(1, handedOut.size());
+        Assert.assertSame(handedOut.iterator().next(), slowProvider.get());
+    }
+
+    // A failed creation is reported and the next lookup tries again
+    @Test
+    public void testFailedCreationIsRetried()
+    {
+        final AtomicInteger attempts = new AtomicInteger();
+        final Provider<ScopedObject> scopedProvider = scope.provider(fooName, () -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalStateException("first attempt fails");
+            }
+            return new ScopedObject();
+        });
+
+        try {
+            scopedProvider.get();
+            Assert.fail();
+        }
+        catch (IllegalStateException expected) {
+            // expected
+        }
+
+        Assert.assertNotNull(scopedProvider.get());
+        Assert.assertEquals(2, attempts.get());
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch latch)
+    {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
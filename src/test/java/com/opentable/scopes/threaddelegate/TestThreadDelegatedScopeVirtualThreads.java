@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.inject.Provider;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+// Thousands of virtual threads creating scoped objects with factories that block.
+// If the scope held a monitor while a factory blocks, every carrier thread would be pinned and nothing else
+// could run until the factories return. Skipped on a JDK without virtual threads.
+public class TestThreadDelegatedScopeVirtualThreads
+{
+    private static final int TASKS = 5_000;
+    private static final int CONTEXTS = 500;
+
+    private ThreadDelegatedScope scope = null;
+    private ExecutorService executor = null;
+
+    @Before
+    public void setUp()
+    {
+        this.scope = new ThreadDelegatedScope();
+        this.executor = newVirtualThreadPerTaskExecutor();
+        Assume.assumeTrue("virtual threads need Java 21", executor != null);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        this.scope = null;
+    }
+
+    @Test
+    public void testBlockingFactories() throws Exception
+    {
+        final AtomicInteger creations = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Provider<Object> blockingProvider = scope.provider("blocking", () -> {
+            creations.incrementAndGet();
+            // Stands in for I/O, blocks until the canary below got through.
+            awaitUninterruptibly(release);
+            return new Object();
+        });
+
+        final List<ThreadDelegatedContext> contexts = new ArrayList<>();
+        for (int i = 0; i < CONTEXTS; i++) {
+            contexts.add(new ThreadDelegatedContext());
+        }
+
+        final List<Future<Object>> results = new ArrayList<>();
+        for (int i = 0; i < TASKS; i++) {
+            final ThreadDelegatedContext context = contexts.get(i % CONTEXTS);
+            results.add(executor.submit(() -> {
+                scope.changeScope(context);
+                try {
+                    return blockingProvider.get();
+                }
+                finally {
+                    scope.changeScope(null);
+                }
+            }));
+        }
+
+        // While all factories block, other work on the same executor must still get a turn.
+        try {
+            executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        }
+        catch (TimeoutException e) {
+            Assert.fail("Blocking factories starved the executor, " + creations.get() + " creations running");
+        }
+        finally {
+            release.countDown();
+        }
+
+        for (int i = 0; i < TASKS; i++) {
+            final Object value = results.get(i).get(30, TimeUnit.SECONDS);
+            Assert.assertSame(value, results.get(i % CONTEXTS).get());
+        }
+
+        // One creation per context, everybody else waited for it.
+        Assert.assertEquals(CONTEXTS, creations.get());
+    }
+
+    @Nullable
+    private static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            // No virtual threads on this JDK.
+            return null;
+        }
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch latch)
+    {
+        try {
+            latch.await(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
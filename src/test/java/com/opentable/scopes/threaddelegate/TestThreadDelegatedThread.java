@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+// On a ThreadDelegatedThread the scope keeps the context in a field of the thread
+public class TestThreadDelegatedThread
+{
+    @Test
+    public void testFactory()
+    {
+        final Thread thread = new ThreadDelegatedThreadFactory("scoped", true).newThread(() -> { });
+        Assert.assertTrue(thread instanceof ThreadDelegatedThread);
+        Assert.assertEquals("scoped-1", thread.getName());
+        Assert.assertTrue(thread.isDaemon());
+    }
+
+    @Test
+    public void testThreadField() throws Exception
+    {
+        final ThreadDelegatedScope scope = new ThreadDelegatedScope();
+        final ThreadDelegatedContext plate = new ThreadDelegatedContext();
+
+        runOnThreadDelegatedThread(() -> {
+            scope.changeScope(plate);
+            final ThreadDelegatedThread thread = (ThreadDelegatedThread) Thread.currentThread();
+            Assert.assertSame(plate, thread.getContext());
+            Assert.assertSame(plate, scope.getContext());
+
+            scope.changeScope(null);
+            Assert.assertNull(thread.getContext());
+            Assert.assertNull(scope.peekContext());
+        });
+    }
+
+    // A second scope on the same thread can not share the field, but still works
+    @Test
+    public void testTwoScopes() throws Exception
+    {
+        final ThreadDelegatedScope scope1 = new ThreadDelegatedScope();
+        final ThreadDelegatedScope scope2 = new ThreadDelegatedScope();
+
+        runOnThreadDelegatedThread(() -> {
+            final ThreadDelegatedContext plate1 = scope1.getContext();
+            final ThreadDelegatedContext plate2 = scope2.getContext();
+            Assert.assertNotSame(plate1, plate2);
+            Assert.assertSame(plate1, scope1.getContext());
+            Assert.assertSame(plate2, scope2.getContext());
+
+            scope1.changeScope(null);
+            Assert.assertNull(scope1.peekContext());
+            Assert.assertSame(plate2, scope2.peekContext());
+            scope2.changeScope(null);
+        });
+    }
+
+    private static void runOnThreadDelegatedThread(final Runnable runnable) throws InterruptedException
+    {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread thread = new ThreadDelegatedThreadFactory("test").newThread(() -> {
+            try {
+                runnable.run();
+            }
+            catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        thread.start();
+        thread.join(1000);
+        Assert.assertFalse("Thread got stuck!", thread.isAlive());
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.beans.factory.ObjectFactory;
+
+// Many threads sharing one context and looking up an already created bean (the cache hit path).
+// Compares the lock-free context with a copy of the old fully synchronized implementation.
+// Not run as part of the build, start it with the main method.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class ThreadDelegatedContextContentionBenchmark
+{
+    private static final String NAME = "scopedObject";
+    private static final ObjectFactory<Object> UNSCOPED = Object::new;
+
+    private ThreadDelegatedContext context;
+    private SynchronizedContext synchronizedContext;
+
+    @Setup
+    public void setUp()
+    {
+        context = new ThreadDelegatedContext();
+        context.getOrCreate(NAME, UNSCOPED);
+
+        synchronizedContext = new SynchronizedContext();
+        synchronizedContext.getOrCreate(NAME, UNSCOPED);
+    }
+
+    @Benchmark
+    public Object lockFree()
+    {
+        return context.getOrCreate(NAME, UNSCOPED);
+    }
+
+    @Benchmark
+    public Object synchronizedMonitor()
+    {
+        return synchronizedContext.getOrCreate(NAME, UNSCOPED);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(ThreadDelegatedContextContentionBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    // The lookup as it was done before: synchronized on the context, and then again in each context method.
+    private static class SynchronizedContext
+    {
+        private final Map<String, Object> contents = new HashMap<>();
+
+        synchronized boolean containsKey(final String name)
+        {
+            return contents.containsKey(name);
+        }
+
+        synchronized Object get(final String name)
+        {
+            return contents.get(name);
+        }
+
+        synchronized void put(final String name, final Object value)
+        {
+            contents.put(name, value);
+        }
+
+        Object getOrCreate(final String name, final ObjectFactory<Object> unscoped)
+        {
+            synchronized (this) {
+                if (containsKey(name)) {
+                    return get(name);
+                }
+                final Object value = unscoped.getObject();
+                put(name, value);
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext.ScopeListener;
+
+// Threads hopping in and out of one shared context, which fires ENTER and LEAVE on all its listeners.
+// With destroyOnly the listeners subscribe to DESTROY only, so the hops do not reach them.
+// Not run as part of the build, start it with the main method.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class ThreadDelegatedScopeChangeBenchmark
+{
+    @Param({"0", "1", "10"})
+    public int listenerCount;
+
+    @Param({"false", "true"})
+    public boolean destroyOnly;
+
+    private ThreadDelegatedScope scope;
+    private ThreadDelegatedContext context;
+
+    @Setup
+    public void setUp()
+    {
+        scope = new ThreadDelegatedScope();
+        context = new ThreadDelegatedContext();
+        for (int i = 0; i < listenerCount; i++) {
+            context.put("listener" + i, new EventCountingListener(destroyOnly ? EnumSet.of(ScopeEvent.DESTROY) : ScopeListener.THREAD_EVENTS));
+        }
+    }
+
+    @Benchmark
+    public void enterAndLeave()
+    {
+        scope.changeScope(context);
+        scope.changeScope(null);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(ThreadDelegatedScopeChangeBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
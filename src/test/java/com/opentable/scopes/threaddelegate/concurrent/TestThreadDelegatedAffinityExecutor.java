@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.opentable.scopes.threaddelegate.EventCountingListener;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+// Tasks run in the submitter's context, and tasks of one context stick to one worker
+public class TestThreadDelegatedAffinityExecutor
+{
+    private static final int TASKS = 1000;
+    private static final int WORKERS = 4;
+
+    private ThreadDelegatedAffinityExecutor executor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        executor = new ThreadDelegatedAffinityExecutor(WORKERS);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testSubmit() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        Assert.assertSame(plate, executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        Assert.assertNull(executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+    }
+
+    // Many small tasks of one context enter and leave a worker far less often than once per task
+    @Test
+    public void testAffinity() throws Exception
+    {
+        final EventCountingListener listener = (EventCountingListener) ThreadDelegatedScope.SCOPE.get("listener", EventCountingListener::new);
+        final int eventsBefore = listener.getTotal();
+
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < TASKS; i++) {
+            futures.add(executor.submit(() -> threads.add(Thread.currentThread())));
+        }
+        for (final Future<?> future : futures) {
+            future.get(1, TimeUnit.SECONDS);
+        }
+
+        final int events = listener.getTotal() - eventsBefore;
+        Assert.assertTrue(events + " events for " + TASKS + " tasks", events < TASKS / 10);
+        Assert.assertFalse(threads.isEmpty());
+    }
+
+    // A busy worker's tasks are stolen by idle workers
+    @Test
+    public void testStealing() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute(() -> {
+            blocked.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Assert.assertTrue(blocked.await(1, TimeUnit.SECONDS));
+
+        // The preferred worker is stuck, the task of the same context runs on another one.
+        Assert.assertSame(plate, executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void testShutdown() throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            executor.execute(done::countDown);
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertEquals(0, done.getCount());
+        Assert.assertTrue(executor.isTerminated());
+
+        try {
+            executor.execute(done::countDown);
+            Assert.fail();
+        }
+        catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    // A context created by a task submitted without one is ended once the task is done
+    @Test
+    public void testCreatedContextEnds() throws Exception
+    {
+        final CountDownLatch destroyed = new CountDownLatch(1);
+        final ThreadDelegatedContext plate = executor.submit(() -> {
+            ThreadDelegatedScope.SCOPE.registerDestructionCallback("foo", destroyed::countDown);
+            return ThreadDelegatedScope.SCOPE.peekContext();
+        }).get(1, TimeUnit.SECONDS);
+
+        Assert.assertTrue(destroyed.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(plate.isDestroyed());
+        Assert.assertNull(executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+    }
+
+    // A task still queued when its context ends keeps the context alive, which is destroyed once the task ran
+    @Test
+    public void testQueuedAcrossEnd() throws Exception
+    {
+        final CountDownLatch release = blockWorkers();
+
+        final CountDownLatch destroyed = new CountDownLatch(1);
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final Object bean = ThreadDelegatedScope.SCOPE.get("foo", Object::new);
+        ThreadDelegatedScope.SCOPE.registerDestructionCallback("foo", destroyed::countDown);
+        final Future<Object> future = executor.submit(() -> ThreadDelegatedScope.SCOPE.get("foo", Object::new));
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        plate.end();
+        Assert.assertFalse(plate.isDestroyed());
+
+        release.countDown();
+        Assert.assertSame(bean, future.get(1, TimeUnit.SECONDS));
+        Assert.assertTrue(destroyed.await(1, TimeUnit.SECONDS));
+    }
+
+    // Queued tasks that are cancelled or dropped by shutdownNow() release their context
+    @Test
+    public void testDroppedReleases() throws Exception
+    {
+        blockWorkers();
+
+        final ThreadDelegatedContext cancelled = ThreadDelegatedScope.SCOPE.getContext();
+        final Future<?> future = executor.submit(() -> { });
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        cancelled.end();
+        Assert.assertTrue(future.cancel(false));
+        Assert.assertTrue(cancelled.isDestroyed());
+
+        final ThreadDelegatedContext dropped = ThreadDelegatedScope.SCOPE.getContext();
+        executor.execute(() -> { });
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        dropped.end();
+        Assert.assertFalse(dropped.isDestroyed());
+        executor.shutdownNow();
+        Assert.assertTrue(dropped.isDestroyed());
+    }
+
+    /**
+     * Keeps every worker busy until the returned latch is counted down.
+     */
+    private CountDownLatch blockWorkers() throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch(WORKERS);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < WORKERS; i++) {
+            executor.execute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        return release;
+    }
+}
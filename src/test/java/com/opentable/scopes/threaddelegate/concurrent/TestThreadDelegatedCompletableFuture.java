@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Throwables;
+
+import com.opentable.scopes.threaddelegate.EventCountingListener;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+// All stages of a chain run in the context that started it
+public class TestThreadDelegatedCompletableFuture
+{
+    private ExecutorService executor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testAsyncStages() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+
+        final ThreadDelegatedCompletableFuture<ThreadDelegatedContext> future =
+                ThreadDelegatedCompletableFuture.supplyAsync(ThreadDelegatedScope.SCOPE::peekContext)
+                .thenApplyAsync(first -> {
+                    Assert.assertSame(plate, first);
+                    return ThreadDelegatedScope.SCOPE.peekContext();
+                }, executor)
+                .thenApply(second -> {
+                    Assert.assertSame(plate, second);
+                    return ThreadDelegatedScope.SCOPE.peekContext();
+                });
+
+        Assert.assertSame(plate, future.get(1, TimeUnit.SECONDS));
+        Assert.assertSame(plate, future.getContext());
+
+        // The executor thread went back to no context.
+        Assert.assertNull(executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+    }
+
+    // Stages that complete a plain future from another thread still see the context
+    @Test
+    public void testOf() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final CompletableFuture<String> plain = new CompletableFuture<>();
+
+        final ThreadDelegatedCompletableFuture<ThreadDelegatedContext> future =
+                ThreadDelegatedCompletableFuture.of(plain).thenApply(value -> ThreadDelegatedScope.SCOPE.peekContext());
+
+        executor.submit(() -> plain.complete("done"));
+        Assert.assertSame(plate, future.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testExceptionally() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+
+        final ThreadDelegatedCompletableFuture<ThreadDelegatedContext> future =
+                ThreadDelegatedCompletableFuture.<ThreadDelegatedContext>supplyAsync(() -> {
+                    throw new IllegalStateException();
+                }, executor)
+                .exceptionally(t -> ThreadDelegatedScope.SCOPE.peekContext());
+
+        Assert.assertSame(plate, future.get(1, TimeUnit.SECONDS));
+    }
+
+    // Java 9+ methods are called the way callers do, through a plain CompletableFuture; they must
+    // override the JDK ones at runtime. Reflection, as the build compiles against Java 8.
+
+    // Recovering asynchronously runs on the default executor of the chain, or the given one, in the context
+    @Test
+    public void testExceptionallyAsync() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final Thread worker = executor.submit(Thread::currentThread).get(1, TimeUnit.SECONDS);
+
+        final CompletableFuture<ThreadDelegatedContext> failed = failed();
+        final Function<Throwable, ThreadDelegatedContext> onWorker = t -> {
+            Assert.assertSame(worker, Thread.currentThread());
+            return ThreadDelegatedScope.SCOPE.peekContext();
+        };
+        Assert.assertSame(plate, jdk(failed, "exceptionallyAsync", types(Function.class), onWorker).get(1, TimeUnit.SECONDS));
+
+        final ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            final Function<Throwable, ThreadDelegatedContext> onOther = t -> {
+                Assert.assertNotSame(worker, Thread.currentThread());
+                return ThreadDelegatedScope.SCOPE.peekContext();
+            };
+            Assert.assertSame(plate, jdk(failed, "exceptionallyAsync", types(Function.class, Executor.class), onOther, other)
+                    .get(1, TimeUnit.SECONDS));
+        }
+        finally {
+            other.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExceptionallyCompose() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final Function<Throwable, CompletionStage<ThreadDelegatedContext>> recover =
+                t -> CompletableFuture.completedFuture(ThreadDelegatedScope.SCOPE.peekContext());
+
+        Assert.assertSame(plate, jdk(failed(), "exceptionallyCompose", types(Function.class), recover).get(1, TimeUnit.SECONDS));
+
+        // A future that does not fail keeps its value.
+        final CompletableFuture<String> done = ThreadDelegatedCompletableFuture.completedFuture("plate");
+        final Function<Throwable, CompletionStage<String>> unused = t -> CompletableFuture.completedFuture("recovered");
+        Assert.assertEquals("plate", jdk(done, "exceptionallyCompose", types(Function.class), unused).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testExceptionallyComposeAsync() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final Thread worker = executor.submit(Thread::currentThread).get(1, TimeUnit.SECONDS);
+        final Function<Throwable, CompletionStage<ThreadDelegatedContext>> recover = t -> {
+            Assert.assertSame(worker, Thread.currentThread());
+            return CompletableFuture.completedFuture(ThreadDelegatedScope.SCOPE.peekContext());
+        };
+
+        Assert.assertSame(plate, jdk(failed(), "exceptionallyComposeAsync", types(Function.class), recover).get(1, TimeUnit.SECONDS));
+        Assert.assertSame(plate, jdk(failed(), "exceptionallyComposeAsync", types(Function.class, Executor.class), recover, executor)
+                .get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCompleteAsync() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final CompletableFuture<Void> start = ThreadDelegatedCompletableFuture.runAsync(() -> { }, executor);
+        start.get(1, TimeUnit.SECONDS);
+
+        final CompletableFuture<ThreadDelegatedContext> future = newIncompleteFuture(start);
+        final Supplier<ThreadDelegatedContext> peek = ThreadDelegatedScope.SCOPE::peekContext;
+        Assert.assertSame(future, jdk(future, "completeAsync", types(Supplier.class, Executor.class), peek, executor));
+        Assert.assertSame(plate, future.get(1, TimeUnit.SECONDS));
+
+        final CompletableFuture<ThreadDelegatedContext> failing = newIncompleteFuture(start);
+        final Supplier<ThreadDelegatedContext> fail = () -> {
+            throw new IllegalStateException();
+        };
+        jdk(failing, "completeAsync", types(Supplier.class), fail);
+        Assert.assertSame(plate, failing.exceptionally(t -> {
+            Assert.assertTrue(t.getCause() instanceof IllegalStateException);
+            return ThreadDelegatedScope.SCOPE.peekContext();
+        }).get(1, TimeUnit.SECONDS));
+    }
+
+    // A stage that runs on a thread which already is in the context does not change the scope
+    @Test
+    public void testSameContextSkipsScopeChange() throws Exception
+    {
+        final EventCountingListener listener = (EventCountingListener) ThreadDelegatedScope.SCOPE.get("listener", EventCountingListener::new);
+        Assert.assertEquals(1, listener.getTotal());
+
+        final ThreadDelegatedCompletableFuture<String> future =
+                ThreadDelegatedCompletableFuture.completedFuture("hello").thenApply(String::toUpperCase).thenApply(String::trim);
+
+        Assert.assertEquals("HELLO", future.get(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, listener.getTotal());
+
+        // An async stage enters and leaves once.
+        ThreadDelegatedCompletableFuture.runAsync(() -> { }, executor).get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(3, listener.getTotal());
+    }
+
+    /**
+     * Calls a method of the JDK's CompletableFuture, skipping the test on JDKs that do not have it.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> CompletableFuture<T> jdk(final CompletableFuture<?> future, final String name, final Class<?>[] types,
+                                                final Object... arguments) throws Exception
+    {
+        final Method method;
+        try {
+            method = CompletableFuture.class.getMethod(name, types);
+        }
+        catch (NoSuchMethodException e) {
+            Assume.assumeNoException(e);
+            throw e;
+        }
+        try {
+            return (CompletableFuture<T>) method.invoke(future, arguments);
+        }
+        catch (InvocationTargetException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    private static Class<?>[] types(final Class<?>... types)
+    {
+        return types;
+    }
+
+    private static <T> CompletableFuture<T> newIncompleteFuture(final CompletableFuture<?> future) throws Exception
+    {
+        return jdk(future, "newIncompleteFuture", types());
+    }
+
+    private ThreadDelegatedCompletableFuture<ThreadDelegatedContext> failed()
+    {
+        return ThreadDelegatedCompletableFuture.supplyAsync(() -> {
+            throw new IllegalStateException();
+        }, executor);
+    }
+
+}
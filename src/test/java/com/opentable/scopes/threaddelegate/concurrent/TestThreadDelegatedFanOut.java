@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+// Subtasks run in children of the forking context, and nothing runs in them after close
+public class TestThreadDelegatedFanOut
+{
+    private ExecutorService executor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testChildContexts() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final Object shared = ThreadDelegatedScope.SCOPE.get("shared", Object::new);
+
+        final List<Future<Object[]>> results = new ArrayList<>();
+        try (ThreadDelegatedFanOut fanOut = ThreadDelegatedFanOut.open(executor)) {
+            Assert.assertSame(plate, fanOut.getParent());
+            for (int i = 0; i < 10; i++) {
+                results.add(fanOut.fork(() -> new Object[] {
+                        ThreadDelegatedScope.SCOPE.peekContext(),
+                        ThreadDelegatedScope.SCOPE.get("shared", Object::new),
+                        ThreadDelegatedScope.SCOPE.get("local", Object::new)
+                }));
+            }
+            fanOut.join();
+        }
+
+        final List<Object> locals = new ArrayList<>();
+        for (final Future<Object[]> result : results) {
+            final Object[] seen = result.get();
+            final ThreadDelegatedContext child = (ThreadDelegatedContext) seen[0];
+            Assert.assertNotSame(plate, child);
+            Assert.assertSame(plate, child.getParent());
+            Assert.assertSame(shared, seen[1]);
+            Assert.assertFalse(locals.contains(seen[2]));
+            locals.add(seen[2]);
+        }
+
+        // Nothing the subtasks created ended up in the parent.
+        Assert.assertNotSame(locals.get(0), ThreadDelegatedScope.SCOPE.get("local", Object::new));
+        Assert.assertSame(plate, ThreadDelegatedScope.SCOPE.peekContext());
+    }
+
+    @Test
+    public void testFailure() throws Exception
+    {
+        try (ThreadDelegatedFanOut fanOut = ThreadDelegatedFanOut.open(executor)) {
+            final Future<Object> failed = fanOut.fork(() -> {
+                throw new IllegalStateException("fail");
+            });
+            final Future<String> succeeded = fanOut.fork(() -> "ok");
+            fanOut.join();
+
+            Assert.assertEquals("ok", succeeded.get());
+            try {
+                failed.get();
+                Assert.fail();
+            }
+            catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    // Close cancels running subtasks and returns only once they are gone
+    @Test
+    public void testClose() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger finished = new AtomicInteger();
+        final Future<Object> blocked;
+        try (ThreadDelegatedFanOut fanOut = ThreadDelegatedFanOut.open(executor)) {
+            blocked = fanOut.fork(() -> {
+                try {
+                    started.countDown();
+                    return new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+                }
+                finally {
+                    finished.incrementAndGet();
+                }
+            });
+            Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, finished.get());
+        Assert.assertTrue(blocked.isCancelled());
+        try {
+            blocked.get();
+            Assert.fail();
+        }
+        catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    // Closing after an interrupted join still waits for the subtasks
+    @Test
+    public void testInterruptedJoin() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger finished = new AtomicInteger();
+        try (ThreadDelegatedFanOut fanOut = ThreadDelegatedFanOut.open(executor)) {
+            fanOut.fork(() -> {
+                started.countDown();
+                try {
+                    return new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+                }
+                finally {
+                    // Take a while to leave, so close returning early would show.
+                    Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+                    finished.incrementAndGet();
+                }
+            });
+            Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+            Thread.currentThread().interrupt();
+            try {
+                fanOut.join();
+                Assert.fail();
+            }
+            catch (InterruptedException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals(1, finished.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testForkAfterClose()
+    {
+        final ThreadDelegatedFanOut fanOut = ThreadDelegatedFanOut.open(executor);
+        fanOut.close();
+        fanOut.fork(() -> null);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.opentable.scopes.threaddelegate.EventCountingListener;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+// Parallel work sees the context, and workers enter it once each rather than once per element
+public class TestThreadDelegatedForkJoin
+{
+    private static final int ELEMENTS = 10_000;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @After
+    public void tearDown()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testParallelStream()
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final EventCountingListener listener = (EventCountingListener) ThreadDelegatedScope.SCOPE.get("listener", EventCountingListener::new);
+        final int entersBefore = listener.getCount(ScopeEvent.ENTER);
+
+        final long inContext = ThreadDelegatedForkJoin.invoke(() ->
+                IntStream.range(0, ELEMENTS).parallel()
+                        .filter(i -> ThreadDelegatedScope.SCOPE.peekContext() == plate)
+                        .count());
+
+        Assert.assertEquals(ELEMENTS, inContext);
+        Assert.assertTrue(listener.getCount(ScopeEvent.ENTER) - entersBefore <= Runtime.getRuntime().availableProcessors());
+
+        // The calling thread is still in its context.
+        Assert.assertSame(plate, ThreadDelegatedScope.SCOPE.peekContext());
+    }
+
+    // The workers leave the context before invoke returns, so an ended context is destroyed right away
+    @Test
+    public void testInvokeLeaves()
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.newContext();
+        final EventCountingListener listener = new EventCountingListener();
+        ThreadDelegatedScope.SCOPE.changeScope(plate);
+        ThreadDelegatedScope.SCOPE.get("listener", () -> listener);
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+
+        final long inContext = ThreadDelegatedForkJoin.invoke(plate, () -> {
+            // The workers are in the context, so ending it here does not destroy it yet.
+            plate.end();
+            Assert.assertFalse(plate.isDestroyed());
+            return IntStream.range(0, ELEMENTS).parallel()
+                    .filter(i -> ThreadDelegatedScope.SCOPE.peekContext() == plate)
+                    .count();
+        });
+        Assert.assertEquals(ELEMENTS, inContext);
+        Assert.assertEquals(listener.getCount(ScopeEvent.ENTER), listener.getCount(ScopeEvent.LEAVE));
+        Assert.assertTrue(plate.isDestroyed());
+    }
+
+    // Subtasks still queued when the work fails finish on the workers, in the context, before invoke returns
+    @Test
+    public void testLeftoverSubtasks()
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.newContext();
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger inContext = new AtomicInteger();
+        final AtomicInteger onCaller = new AtomicInteger();
+        try {
+            ThreadDelegatedForkJoin.invoke(plate, () -> {
+                for (int i = 0; i < ELEMENTS; i++) {
+                    ForkJoinTask.adapt(() -> {
+                        if (ThreadDelegatedScope.SCOPE.peekContext() == plate) {
+                            inContext.incrementAndGet();
+                        }
+                        if (Thread.currentThread() == caller) {
+                            onCaller.incrementAndGet();
+                        }
+                    }).fork();
+                }
+                throw new IllegalStateException();
+            });
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(ELEMENTS, inContext.get());
+        Assert.assertEquals(0, onCaller.get());
+    }
+
+    // Invocations share a long-lived pool instead of starting new workers
+    @Test
+    public void testPoolReused()
+    {
+        final Set<ForkJoinPool> first = pools();
+        Assert.assertEquals(1, first.size());
+        Assert.assertEquals(first, pools());
+    }
+
+    private static Set<ForkJoinPool> pools()
+    {
+        final Set<ForkJoinPool> pools = ConcurrentHashMap.newKeySet();
+        ThreadDelegatedForkJoin.invoke(null, () -> {
+            IntStream.range(0, ELEMENTS).parallel().forEach(i -> pools.add(((ForkJoinWorkerThread) Thread.currentThread()).getPool()));
+            return null;
+        });
+        return pools;
+    }
+
+    @Test
+    public void testRecursiveTask() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final ForkJoinPool pool = ThreadDelegatedForkJoin.newPool(4, plate);
+        try {
+            Assert.assertEquals(ELEMENTS, (int) pool.invoke(new CountInContext(plate, 0, ELEMENTS)));
+        }
+        finally {
+            pool.shutdown();
+            Assert.assertTrue(pool.awaitTermination(1, TimeUnit.SECONDS));
+        }
+    }
+
+    private static class CountInContext extends RecursiveTask<Integer>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient ThreadDelegatedContext context;
+        private final int from;
+        private final int to;
+
+        CountInContext(final ThreadDelegatedContext context, final int from, final int to)
+        {
+            this.context = context;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute()
+        {
+            if (to - from <= 100) {
+                return ThreadDelegatedScope.SCOPE.peekContext() == context ? to - from : 0;
+            }
+            final int middle = (from + to) / 2;
+            final CountInContext left = new CountInContext(context, from, middle);
+            left.fork();
+            return new CountInContext(context, middle, to).compute() + left.join();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScopeConfiguration;
+
+// Executor beans propagate the context, scheduled jobs get a fresh one per run
+public class TestThreadDelegatingExecutorPostProcessor
+{
+    private AnnotationConfigApplicationContext context = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        context = new AnnotationConfigApplicationContext(ExecutorConfiguration.class);
+    }
+
+    @After
+    public void tearDown()
+    {
+        context.close();
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testTaskExecutor() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final ThreadPoolTaskExecutor executor = context.getBean("taskExecutor", ThreadPoolTaskExecutor.class);
+        Assert.assertFalse(AopUtils.isAopProxy(executor));
+        Assert.assertSame(plate, executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+
+        // The decorator that was there before still runs.
+        Assert.assertTrue(context.getBean(ExecutorConfiguration.class).decorated.get() > 0);
+    }
+
+    @Test
+    public void testAsync() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        Assert.assertSame(plate, context.getBean(AsyncService.class).peek().get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testExecutorService() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final ExecutorService executor = context.getBean("executorService", ExecutorService.class);
+        Assert.assertTrue(AopUtils.isJdkDynamicProxy(executor));
+        Assert.assertSame(plate, executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+    }
+
+    // A bean declared as its class keeps being injectable by it
+    @Test
+    public void testClassProxy()
+    {
+        final ThreadPoolTaskScheduler scheduler = context.getBean(ThreadPoolTaskScheduler.class);
+        Assert.assertTrue(AopUtils.isCglibProxy(scheduler));
+    }
+
+    @Test
+    public void testInvokeAll() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final ExecutorService executor = context.getBean("executorService", ExecutorService.class);
+        final List<Callable<ThreadDelegatedContext>> tasks = Arrays.asList(ThreadDelegatedScope.SCOPE::peekContext, ThreadDelegatedScope.SCOPE::peekContext);
+
+        for (final Future<ThreadDelegatedContext> future : executor.invokeAll(tasks)) {
+            Assert.assertSame(plate, future.get());
+        }
+        Assert.assertSame(plate, executor.invokeAll(tasks, 1, TimeUnit.SECONDS).get(0).get());
+        Assert.assertSame(plate, executor.invokeAny(tasks));
+        Assert.assertSame(plate, executor.invokeAny(tasks, 1, TimeUnit.SECONDS));
+    }
+
+    // The proxy releases the context of a queued task once its future is cancelled, or when the task is rejected
+    @Test
+    public void testDroppedReleases() throws Exception
+    {
+        final ExecutorService executor = context.getBean("executorService", ExecutorService.class);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> release.await(1, TimeUnit.SECONDS));
+
+        final ThreadDelegatedContext cancelled = ThreadDelegatedScope.SCOPE.getContext();
+        final Future<?> future = executor.submit(() -> { });
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        cancelled.end();
+        Assert.assertFalse(cancelled.isDestroyed());
+        Assert.assertTrue(future.cancel(false));
+        Assert.assertTrue(cancelled.isDestroyed());
+        release.countDown();
+
+        executor.shutdown();
+        final ThreadDelegatedContext rejected = ThreadDelegatedScope.SCOPE.getContext();
+        try {
+            executor.execute(() -> { });
+            Assert.fail();
+        }
+        catch (RejectedExecutionException e) {
+            // expected
+        }
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        rejected.end();
+        Assert.assertTrue(rejected.isDestroyed());
+    }
+
+    @Test
+    public void testOptOut() throws Exception
+    {
+        ThreadDelegatedScope.SCOPE.getContext();
+        final ExecutorService executor = context.getBean("excludedExecutorService", ExecutorService.class);
+        Assert.assertFalse(AopUtils.isAopProxy(executor));
+        final Future<ThreadDelegatedContext> future = executor.submit(ThreadDelegatedScope.SCOPE::peekContext);
+        Assert.assertNull(future.get(1, TimeUnit.SECONDS));
+    }
+
+    // The executors of this package propagate the context themselves and are not proxied
+    @Test
+    public void testThreadDelegatingExecutors()
+    {
+        final ThreadDelegatingExecutorPostProcessor postProcessor = new ThreadDelegatingExecutorPostProcessor(ThreadDelegatedScope.SCOPE);
+        final List<ExecutorService> executors = Arrays.asList(
+                new ThreadDelegatingThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()),
+                new ThreadDelegatedAffinityExecutor(1),
+                new ThreadDelegatingScheduledExecutorService(Executors.newScheduledThreadPool(1)));
+        try {
+            for (final ExecutorService executor : executors) {
+                Assert.assertSame(executor, postProcessor.postProcessBeforeInitialization(executor, "executor"));
+                Assert.assertSame(executor, postProcessor.postProcessAfterInitialization(executor, "executor"));
+            }
+        }
+        finally {
+            for (final ExecutorService executor : executors) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    // A bean that already propagates the context, or is post-processed twice, is not wrapped again
+    @Test
+    public void testNoDoubleWrapping()
+    {
+        final ThreadDelegatingExecutorPostProcessor postProcessor = new ThreadDelegatingExecutorPostProcessor(ThreadDelegatedScope.SCOPE);
+        final Object proxy = context.getBean("executorService");
+        Assert.assertSame(proxy, postProcessor.postProcessAfterInitialization(proxy, "executorService"));
+        final Object wrapped = context.getBean("threadDelegatingExecutorService");
+        Assert.assertSame(wrapped, postProcessor.postProcessAfterInitialization(wrapped, "threadDelegatingExecutorService"));
+
+        final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        final ThreadDelegatingTaskDecorator decorator = new ThreadDelegatingTaskDecorator(ThreadDelegatedScope.SCOPE);
+        executor.setTaskDecorator(decorator);
+        postProcessor.postProcessBeforeInitialization(executor, "executor");
+        Assert.assertSame(decorator, new DirectFieldAccessor(executor).getPropertyValue("taskDecorator"));
+    }
+
+    @Test
+    public void testScheduled() throws Exception
+    {
+        final ScheduledJob job = context.getBean(ScheduledJob.class);
+        // Scheduling happened while the application context started, that context must not leak into the job.
+        Assert.assertTrue(job.runs.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(AopUtils.isAopProxy(context.getBean("taskScheduler")));
+        Assert.assertTrue(job.contexts.size() >= 3);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse(job.bound.get(i));
+            for (int j = 0; j < i; j++) {
+                Assert.assertNotSame(job.contexts.get(i), job.contexts.get(j));
+            }
+        }
+    }
+
+    @Configuration
+    @EnableAsync
+    @EnableScheduling
+    @Import({ThreadDelegatedScopeConfiguration.class, AsyncService.class, ScheduledJob.class})
+    public static class ExecutorConfiguration
+    {
+        private final AtomicInteger decorated = new AtomicInteger();
+
+        @Bean
+        public ThreadPoolTaskExecutor taskExecutor()
+        {
+            final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+            executor.setCorePoolSize(1);
+            executor.setTaskDecorator(runnable -> {
+                decorated.incrementAndGet();
+                return runnable;
+            });
+            return executor;
+        }
+
+        @Bean
+        public ThreadPoolTaskScheduler taskScheduler()
+        {
+            return new ThreadPoolTaskScheduler();
+        }
+
+        @Bean(destroyMethod = "shutdownNow")
+        public ExecutorService executorService()
+        {
+            return Executors.newFixedThreadPool(1);
+        }
+
+        @Bean(destroyMethod = "shutdownNow")
+        public ExecutorService threadDelegatingExecutorService()
+        {
+            return new ThreadDelegatingExecutorService(Executors.newFixedThreadPool(1));
+        }
+
+        @Bean(destroyMethod = "shutdownNow")
+        @NotThreadDelegated
+        public ExecutorService excludedExecutorService()
+        {
+            return Executors.newFixedThreadPool(1);
+        }
+    }
+
+    public static class AsyncService
+    {
+        @Async("taskExecutor")
+        public CompletableFuture<ThreadDelegatedContext> peek()
+        {
+            return CompletableFuture.completedFuture(ThreadDelegatedScope.SCOPE.peekContext());
+        }
+    }
+
+    public static class ScheduledJob
+    {
+        private final List<ThreadDelegatedContext> contexts = new CopyOnWriteArrayList<>();
+        private final List<Boolean> bound = new CopyOnWriteArrayList<>();
+        private final CountDownLatch runs = new CountDownLatch(3);
+
+        @Scheduled(fixedDelay = 10)
+        public void run()
+        {
+            bound.add(ThreadDelegatedScope.SCOPE.peekContext() != null);
+            contexts.add(ThreadDelegatedScope.SCOPE.getContext());
+            runs.countDown();
+        }
+    }
+}
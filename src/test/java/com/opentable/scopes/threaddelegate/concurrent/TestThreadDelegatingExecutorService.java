@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+// Tasks see the context of the submitting thread, and the worker is clean again afterwards
+public class TestThreadDelegatingExecutorService
+{
+    private ThreadDelegatingScheduledExecutorService executor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        executor = new ThreadDelegatingScheduledExecutorService(Executors.newScheduledThreadPool(1));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testSubmit() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+
+        Assert.assertSame(plate, executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+
+        // The worker thread does not keep the context.
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        Assert.assertNull(executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+    }
+
+    // Scoped objects created on the worker end up in the context of the submitter
+    @Test
+    public void testScopedObject() throws Exception
+    {
+        final Object testObject = ThreadDelegatedScope.SCOPE.get("foo", Object::new);
+
+        final Future<Object> future = executor.submit(() -> ThreadDelegatedScope.SCOPE.get("foo", Object::new));
+        Assert.assertSame(testObject, future.get(1, TimeUnit.SECONDS));
+
+        final Future<Object> bar = executor.submit(() -> ThreadDelegatedScope.SCOPE.get("bar", Object::new));
+        Assert.assertSame(bar.get(1, TimeUnit.SECONDS), ThreadDelegatedScope.SCOPE.get("bar", Object::new));
+    }
+
+    @Test
+    public void testInvokeAll() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final Callable<ThreadDelegatedContext> task = ThreadDelegatedScope.SCOPE::peekContext;
+
+        final List<Future<ThreadDelegatedContext>> futures = executor.invokeAll(Arrays.asList(task, task, task));
+        for (final Future<ThreadDelegatedContext> future : futures) {
+            Assert.assertSame(plate, future.get());
+        }
+        Assert.assertSame(plate, executor.invokeAny(Arrays.asList(task, task)));
+    }
+
+    @Test
+    public void testSchedule() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+
+        final ScheduledFuture<ThreadDelegatedContext> future =
+                executor.schedule(ThreadDelegatedScope.SCOPE::peekContext, 10, TimeUnit.MILLISECONDS);
+        Assert.assertSame(plate, future.get(1, TimeUnit.SECONDS));
+    }
+
+    // Every run of a periodic task enters the context of the thread that scheduled it
+    @Test
+    public void testScheduleAtFixedRate() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final CountDownLatch runs = new CountDownLatch(3);
+
+        final ScheduledFuture<?> future = executor.scheduleAtFixedRate(() -> {
+            if (ThreadDelegatedScope.SCOPE.peekContext() == plate) {
+                runs.countDown();
+            }
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue("Periodic task did not see the context!", runs.await(1, TimeUnit.SECONDS));
+        future.cancel(false);
+    }
+
+    // Submitting without a context does not create one, and the task runs without one
+    @Test
+    public void testNoContext() throws Exception
+    {
+        Assert.assertNull(executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+    }
+
+    // A task still queued when its context ends keeps the context alive, which is destroyed once the task ran
+    @Test
+    public void testQueuedAcrossEnd() throws Exception
+    {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        executor.submit(() -> {
+            blocked.await();
+            return null;
+        });
+
+        final AtomicInteger destroyed = new AtomicInteger();
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final Object bean = ThreadDelegatedScope.SCOPE.get("foo", Object::new);
+        ThreadDelegatedScope.SCOPE.registerDestructionCallback("foo", destroyed::incrementAndGet);
+        final Future<Object> future = executor.submit(() -> ThreadDelegatedScope.SCOPE.get("foo", Object::new));
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        plate.end();
+        Assert.assertFalse(plate.isDestroyed());
+        Assert.assertEquals(0, destroyed.get());
+
+        blocked.countDown();
+        Assert.assertSame(bean, future.get(1, TimeUnit.SECONDS));
+        Assert.assertTrue(plate.isDestroyed());
+        Assert.assertEquals(1, destroyed.get());
+    }
+
+    // Cancelling a task that has not run releases its context
+    @Test
+    public void testCancelReleases()
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final ScheduledFuture<?> once = executor.schedule(() -> { }, 1, TimeUnit.HOURS);
+        final ScheduledFuture<?> periodic = executor.scheduleWithFixedDelay(() -> { }, 0, 1, TimeUnit.MILLISECONDS);
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        plate.end();
+        Assert.assertFalse(plate.isDestroyed());
+
+        Assert.assertTrue(once.cancel(false));
+        Assert.assertFalse(plate.isDestroyed());
+        Assert.assertTrue(periodic.cancel(false));
+        Assert.assertTrue(plate.isDestroyed());
+    }
+
+    // Tasks dropped by shutdownNow() release their context
+    @Test
+    public void testShutdownNowReleases() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.submit(() -> {
+            started.countDown();
+            new CountDownLatch(1).await();
+            return null;
+        });
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        executor.execute(() -> { });
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        plate.end();
+        Assert.assertFalse(plate.isDestroyed());
+
+        Assert.assertEquals(1, executor.shutdownNow().size());
+        Assert.assertTrue(plate.isDestroyed());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.opentable.scopes.threaddelegate.EventCountingListener;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext.ScopeEvent;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+// A worker draining several tasks of one context enters and leaves it once
+public class TestThreadDelegatingThreadPoolExecutor
+{
+    private ThreadDelegatingThreadPoolExecutor executor = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        executor = new ThreadDelegatingThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testSubmit() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        Assert.assertSame(plate, executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        Assert.assertNull(executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCoalescedEvents() throws Exception
+    {
+        final EventCountingListener listener = (EventCountingListener) ThreadDelegatedScope.SCOPE.get("listener", EventCountingListener::new);
+        listener.reset();
+
+        // Hold the worker, so the tasks queue up behind it.
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        final AtomicInteger ran = new AtomicInteger();
+        Future<?> last = null;
+        for (int i = 0; i < 10; i++) {
+            executor.execute(ran::incrementAndGet);
+            last = executor.submit(ran::incrementAndGet);
+        }
+        release.countDown();
+        last.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(20, ran.get());
+
+        // Wait for the worker to go idle, which leaves the context.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (listener.getCount(ScopeEvent.LEAVE) == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(1, listener.getCount(ScopeEvent.ENTER));
+        Assert.assertEquals(1, listener.getCount(ScopeEvent.LEAVE));
+    }
+
+    // A worker switches contexts between tasks of different contexts
+    @Test
+    public void testContextSwitch() throws Exception
+    {
+        final ThreadDelegatedContext first = ThreadDelegatedScope.SCOPE.getContext();
+        final Future<ThreadDelegatedContext> inFirst = executor.submit(ThreadDelegatedScope.SCOPE::peekContext);
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        final ThreadDelegatedContext second = ThreadDelegatedScope.SCOPE.getContext();
+        final Future<ThreadDelegatedContext> inSecond = executor.submit(ThreadDelegatedScope.SCOPE::peekContext);
+
+        Assert.assertSame(first, inFirst.get(1, TimeUnit.SECONDS));
+        Assert.assertSame(second, inSecond.get(1, TimeUnit.SECONDS));
+    }
+
+    // The worker leaves its context when it terminates
+    @Test
+    public void testShutdown() throws Exception
+    {
+        final EventCountingListener listener = (EventCountingListener) ThreadDelegatedScope.SCOPE.get("listener", EventCountingListener::new);
+        listener.reset();
+        final AtomicReference<ThreadDelegatedContext> seen = new AtomicReference<>();
+        executor.execute(() -> seen.set(ThreadDelegatedScope.SCOPE.peekContext()));
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertNotNull(seen.get());
+        // The pool counts as terminated before the worker thread runs its exit hook.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (listener.getCount(ScopeEvent.LEAVE) < listener.getCount(ScopeEvent.ENTER) && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(listener.getCount(ScopeEvent.ENTER), listener.getCount(ScopeEvent.LEAVE));
+    }
+
+    // A context created by a task submitted without one is ended once the task is done
+    @Test
+    public void testCreatedContextEnds() throws Exception
+    {
+        final CountDownLatch destroyed = new CountDownLatch(1);
+        final ThreadDelegatedContext plate = executor.submit(() -> {
+            ThreadDelegatedScope.SCOPE.registerDestructionCallback("foo", destroyed::countDown);
+            return ThreadDelegatedScope.SCOPE.peekContext();
+        }).get(1, TimeUnit.SECONDS);
+
+        Assert.assertTrue(destroyed.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(plate.isDestroyed());
+        Assert.assertNull(executor.submit(ThreadDelegatedScope.SCOPE::peekContext).get(1, TimeUnit.SECONDS));
+    }
+
+    // A task still queued when its context ends keeps the context alive, which is destroyed once the task ran
+    @Test
+    public void testQueuedAcrossEnd() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> awaitQuietly(release));
+
+        final CountDownLatch destroyed = new CountDownLatch(1);
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final Object bean = ThreadDelegatedScope.SCOPE.get("foo", Object::new);
+        ThreadDelegatedScope.SCOPE.registerDestructionCallback("foo", destroyed::countDown);
+        final Future<Object> future = executor.submit(() -> ThreadDelegatedScope.SCOPE.get("foo", Object::new));
+
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        plate.end();
+        Assert.assertFalse(plate.isDestroyed());
+
+        release.countDown();
+        Assert.assertSame(bean, future.get(1, TimeUnit.SECONDS));
+        Assert.assertTrue(destroyed.await(1, TimeUnit.SECONDS));
+    }
+
+    // Queued tasks that are cancelled, dropped by shutdownNow() or rejected release their context
+    @Test
+    public void testDroppedReleases() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> awaitQuietly(release));
+
+        final ThreadDelegatedContext cancelled = ThreadDelegatedScope.SCOPE.getContext();
+        final Future<?> future = executor.submit(() -> { });
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        cancelled.end();
+        Assert.assertTrue(future.cancel(false));
+        Assert.assertTrue(cancelled.isDestroyed());
+
+        final ThreadDelegatedContext dropped = ThreadDelegatedScope.SCOPE.getContext();
+        executor.execute(() -> { });
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        dropped.end();
+        Assert.assertFalse(dropped.isDestroyed());
+        Assert.assertEquals(2, executor.shutdownNow().size());
+        Assert.assertTrue(dropped.isDestroyed());
+
+        final ThreadDelegatedContext rejected = ThreadDelegatedScope.SCOPE.getContext();
+        try {
+            executor.execute(() -> { });
+            Assert.fail();
+        }
+        catch (RejectedExecutionException e) {
+            // expected
+        }
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        rejected.end();
+        Assert.assertTrue(rejected.isDestroyed());
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch)
+    {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
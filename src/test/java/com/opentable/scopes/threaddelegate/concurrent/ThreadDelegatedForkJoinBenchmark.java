@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+// Runs a parallel stream from a thread with a context, on a plain fork/join pool and through
+// ThreadDelegatedForkJoin.invoke, which switches every worker of its shared pool into the
+// context and out again. With few elements the result is the cost of that switching.
+// Not run as part of the build, start it with the main method.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadDelegatedForkJoinBenchmark
+{
+    @Param({"plain", "threadDelegated"})
+    public String poolType;
+
+    @Param({"100", "100000"})
+    public int elements;
+
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp()
+    {
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        ThreadDelegatedScope.SCOPE.get("foo", Object::new);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        pool.shutdownNow();
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Benchmark
+    public long parallelSum()
+    {
+        if ("plain".equals(poolType)) {
+            return pool.submit(this::sum).join();
+        }
+        return ThreadDelegatedForkJoin.invoke(this::sum);
+    }
+
+    private long sum()
+    {
+        return IntStream.range(0, elements).parallel().asLongStream().sum();
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(ThreadDelegatedForkJoinBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
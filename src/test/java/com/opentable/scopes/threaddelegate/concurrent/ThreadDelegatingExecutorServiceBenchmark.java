@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+// Submits a batch of small tasks from a thread with a context and waits for all of them,
+// on a plain ThreadPoolExecutor, on the same executor wrapped to propagate the context, on a pool
+// that defers leaving the context between tasks, and on an affinity executor that keeps the
+// context's tasks on one worker.
+// Not run as part of the build, start it with the main method.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadDelegatingExecutorServiceBenchmark
+{
+    private static final int BATCH = 100;
+
+    @Param({"plain", "threadDelegating", "deferredUnbind", "affinity"})
+    public String executorType;
+
+    private ExecutorService threadPool;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp()
+    {
+        if ("affinity".equals(executorType)) {
+            threadPool = new ThreadDelegatedAffinityExecutor(4);
+            executor = threadPool;
+        }
+        else if ("deferredUnbind".equals(executorType)) {
+            threadPool = new ThreadDelegatingThreadPoolExecutor(4, 4, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+            executor = threadPool;
+        }
+        else {
+            threadPool = new ThreadPoolExecutor(4, 4, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+            executor = "plain".equals(executorType) ? threadPool : new ThreadDelegatingExecutorService(threadPool);
+        }
+        ThreadDelegatedScope.SCOPE.get("foo", Object::new);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        threadPool.shutdownNow();
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Benchmark
+    public void submitBatch() throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            executor.execute(latch::countDown);
+        }
+        latch.await();
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(ThreadDelegatingExecutorServiceBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
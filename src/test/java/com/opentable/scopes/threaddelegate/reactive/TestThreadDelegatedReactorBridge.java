@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.reactive;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.server.ServerWebExchange;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+// The context follows a pipeline across scheduler hops, and lives in its Reactor context
+public class TestThreadDelegatedReactorBridge
+{
+    private ThreadDelegatedReactorBridge bridge = null;
+
+    @Before
+    public void setUp()
+    {
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+        bridge = new ThreadDelegatedReactorBridge(ThreadDelegatedScope.SCOPE);
+        bridge.install();
+    }
+
+    @After
+    public void tearDown()
+    {
+        bridge.close();
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+    }
+
+    @Test
+    public void testSubscribeOn()
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        Assert.assertSame(plate, Mono.fromCallable(ThreadDelegatedScope.SCOPE::peekContext)
+                .subscribeOn(Schedulers.boundedElastic())
+                .block());
+
+        // Without the hook, the worker does not see the context.
+        bridge.close();
+        Assert.assertFalse(Mono.fromCallable(() -> Optional.ofNullable(ThreadDelegatedScope.SCOPE.peekContext()))
+                .subscribeOn(Schedulers.boundedElastic())
+                .block()
+                .isPresent());
+    }
+
+    @Test
+    public void testPublishOn()
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.getContext();
+        final List<ThreadDelegatedContext> seen = Flux.range(0, 1000)
+                .publishOn(Schedulers.parallel())
+                .map(i -> ThreadDelegatedScope.SCOPE.peekContext())
+                .collectList()
+                .block();
+        Assert.assertEquals(1000, seen.size());
+        for (final ThreadDelegatedContext context : seen) {
+            Assert.assertSame(plate, context);
+        }
+    }
+
+    // A pipeline bound to a context sees it in its Reactor context and after a hop
+    @Test
+    public void testWithContext()
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.newContext();
+        final Mono<Object[]> seen = Mono.fromCallable(ThreadDelegatedScope.SCOPE::peekContext)
+                .subscribeOn(Schedulers.parallel())
+                .zipWith(ThreadDelegatedReactorBridge.context(), (bound, carried) -> new Object[] {bound, carried});
+
+        final Object[] result = bridge.withContext(seen, plate).block();
+        Assert.assertSame(plate, result[0]);
+        Assert.assertSame(plate, result[1]);
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+        Assert.assertNull(ThreadDelegatedReactorBridge.context().block());
+    }
+
+    // A signal from a thread outside of Reactor, arriving after subscribe returned, runs in the context of the pipeline
+    @Test
+    public void testForeignThread() throws Exception
+    {
+        final ThreadDelegatedContext plate = ThreadDelegatedScope.SCOPE.newContext();
+        final CompletableFuture<String> response = new CompletableFuture<>();
+        final CompletableFuture<Object[]> seen = new CompletableFuture<>();
+        Mono.fromFuture(response)
+                .map(value -> ThreadDelegatedScope.SCOPE.peekContext())
+                .publishOn(Schedulers.parallel())
+                .map(first -> new Object[] {first, ThreadDelegatedScope.SCOPE.peekContext()})
+                .contextWrite(c -> c.put(ThreadDelegatedReactorBridge.CONTEXT_KEY, plate))
+                .subscribe(seen::complete, seen::completeExceptionally);
+
+        final Thread foreign = new Thread(() -> response.complete("done"));
+        foreign.start();
+        foreign.join();
+
+        final Object[] result = seen.get(5, TimeUnit.SECONDS);
+        Assert.assertSame(plate, result[0]);
+        Assert.assertSame(plate, result[1]);
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+    }
+
+    // Every exchange gets its own context, the calling thread is left alone
+    @Test
+    public void testWebFilter()
+    {
+        final ThreadDelegatingScopeWebFilter filter = new ThreadDelegatingScopeWebFilter(ThreadDelegatedScope.SCOPE, bridge);
+        final Map<String, Object> attributes = new HashMap<>();
+        final ServerWebExchange exchange = EasyMock.createNiceMock(ServerWebExchange.class);
+        EasyMock.expect(exchange.getAttributes()).andReturn(attributes).anyTimes();
+        EasyMock.replay(exchange);
+
+        final AtomicReference<ThreadDelegatedContext> seen = new AtomicReference<>();
+        filter.filter(exchange, e -> Mono.fromRunnable(() -> seen.set(ThreadDelegatedScope.SCOPE.peekContext()))
+                .subscribeOn(Schedulers.parallel())
+                .then())
+                .block();
+
+        Assert.assertNotNull(seen.get());
+        Assert.assertSame(seen.get(), attributes.get(ThreadDelegatingScopeWebFilter.THREAD_DELEGATED_CONTEXT));
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+
+        filter.filter(exchange, e -> Mono.fromRunnable(() -> Assert.assertNotSame(seen.get(), ThreadDelegatedScope.SCOPE.peekContext()))).block();
+    }
+}
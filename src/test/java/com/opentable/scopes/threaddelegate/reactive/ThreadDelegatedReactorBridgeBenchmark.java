@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.scopes.threaddelegate.reactive;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.reactivestreams.Subscription;
+
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Operators;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
+
+// Runs a long operator chain with one scheduler hop: without any context propagation, with the
+// scheduler hook of the bridge, and with an onEachOperator lift that binds the context on every signal.
+// Not run as part of the build, start it with the main method.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadDelegatedReactorBridgeBenchmark
+{
+    private static final int ELEMENTS = 1000;
+    private static final int OPERATORS = 20;
+    private static final String LIFT_KEY = "eachOperatorLift";
+
+    @Param({"none", "schedulerHook", "eachOperatorLift"})
+    public String propagation;
+
+    private final ThreadDelegatedScope scope = ThreadDelegatedScope.SCOPE;
+    private ThreadDelegatedReactorBridge bridge;
+    private ThreadDelegatedContext context;
+
+    @Setup
+    public void setUp()
+    {
+        bridge = new ThreadDelegatedReactorBridge(scope);
+        context = scope.newContext();
+        if ("schedulerHook".equals(propagation)) {
+            bridge.install();
+        }
+        else if (LIFT_KEY.equals(propagation)) {
+            Hooks.onEachOperator(LIFT_KEY, Operators.lift((scannable, subscriber) -> new BindingSubscriber<>(scope, subscriber)));
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        bridge.close();
+        Hooks.resetOnEachOperator(LIFT_KEY);
+        scope.changeScope(null);
+    }
+
+    @Benchmark
+    public Integer longChain()
+    {
+        Flux<Integer> flux = Flux.range(0, ELEMENTS);
+        for (int i = 0; i < OPERATORS; i++) {
+            flux = flux.map(value -> value + 1);
+        }
+        flux = flux.publishOn(Schedulers.parallel());
+        for (int i = 0; i < OPERATORS; i++) {
+            flux = flux.map(value -> value - 1);
+        }
+        return bridge.withContext(flux, context).blockLast();
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(ThreadDelegatedReactorBridgeBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    /**
+     * The per-signal approach: binds the context of the pipeline around every signal.
+     */
+    private static class BindingSubscriber<T> implements CoreSubscriber<T>
+    {
+        private final ThreadDelegatedScope scope;
+        private final CoreSubscriber<? super T> actual;
+        private final ThreadDelegatedContext context;
+
+        BindingSubscriber(final ThreadDelegatedScope scope, final CoreSubscriber<? super T> actual)
+        {
+            this.scope = scope;
+            this.actual = actual;
+            this.context = actual.currentContext().getOrDefault(ThreadDelegatedReactorBridge.CONTEXT_KEY, null);
+        }
+
+        @Override
+        public Context currentContext()
+        {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(final Subscription subscription)
+        {
+            actual.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(final T value)
+        {
+            final ThreadDelegatedContext previous = scope.peekContext();
+            scope.changeScope(context);
+            try {
+                actual.onNext(value);
+            }
+            finally {
+                scope.changeScope(previous);
+            }
+        }
+
+        @Override
+        public void onError(final Throwable throwable)
+        {
+            actual.onError(throwable);
+        }
+
+        @Override
+        public void onComplete()
+        {
+            actual.onComplete();
+        }
+    }
+}
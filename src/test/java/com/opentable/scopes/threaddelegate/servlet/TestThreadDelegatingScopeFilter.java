@@ -16,8 +16,18 @@ package com.opentable.scopes.threaddelegate.servlet;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import org.easymock.Capture;
 import org.easymock.EasyMock;
 import org.junit.After;
 import org.junit.Assert;
@@ -28,6 +38,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 
 import com.opentable.scopes.threaddelegate.ScopedObject;
+import com.opentable.scopes.threaddelegate.ThreadDelegatedContext;
 import com.opentable.scopes.threaddelegate.ThreadDelegatedScope;
 import com.opentable.scopes.threaddelegate.ThreadDelegatedScopeConfiguration;
 
@@ -105,6 +116,263 @@ public class TestThreadDelegatingScopeFilter
         EasyMock.verify(request);
     }
 
+    // Scoped beans are destroyed when the request ends
+    @Test
+    public void testDestroyOnEnd() throws Exception
+    {
+        final HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.replay(request);
+
+        final AtomicReference<ScopedObject> refHolder = new AtomicReference<>();
+        final AtomicReference<ThreadDelegatedContext> context = new AtomicReference<>();
+        filter.doFilter(request, null, (req, res) -> {
+            refHolder.set(getBean(ScopedObject.class));
+            context.set(ThreadDelegatedScope.SCOPE.peekContext());
+            Assert.assertFalse(refHolder.get().isClosed());
+        });
+        Assert.assertTrue(refHolder.get().isClosed());
+        Assert.assertTrue(context.get().isDestroyed());
+    }
+
+    // A request that neither touches the scope nor goes async gets no context and no async set-up
+    @Test
+    public void testUntouchedRequest() throws Exception
+    {
+        final HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(request.isAsyncSupported()).andReturn(true).anyTimes();
+        request.setAttribute(EasyMock.eq(ThreadDelegatingScopeFilter.THREAD_DELEGATED_CONTEXT), EasyMock.anyObject());
+        EasyMock.expectLastCall().andThrow(new AssertionError("context captured")).anyTimes();
+        EasyMock.replay(request);
+        final HttpServletResponse response = EasyMock.createNiceMock(HttpServletResponse.class);
+        EasyMock.replay(response);
+
+        filter.doFilter(request, response, (req, res) -> Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext()));
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+        EasyMock.verify(request);
+
+        // Without async support there is nothing to wrap.
+        final HttpServletRequest syncRequest = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.replay(syncRequest);
+        filter.doFilter(syncRequest, response, (req, res) -> {
+            Assert.assertSame(syncRequest, req);
+            Assert.assertSame(response, res);
+        });
+    }
+
+    // A request that goes async keeps its context for tasks started on the async context,
+    // and ends it only once the request completes
+    @Test
+    public void testAsyncStart() throws Exception
+    {
+        final Capture<AsyncListener> listener = Capture.newInstance();
+        final Capture<Runnable> task = Capture.newInstance();
+        final AsyncContext asyncContext = EasyMock.createNiceMock(AsyncContext.class);
+        asyncContext.addListener(EasyMock.capture(listener));
+        asyncContext.start(EasyMock.capture(task));
+        EasyMock.replay(asyncContext);
+
+        final Capture<Object> context = Capture.newInstance();
+        final HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        request.setAttribute(EasyMock.eq(ThreadDelegatingScopeFilter.THREAD_DELEGATED_CONTEXT), EasyMock.capture(context));
+        EasyMock.expect(request.getAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATED_CONTEXT))
+                .andAnswer(() -> context.hasCaptured() ? context.getValue() : null).anyTimes();
+        EasyMock.expect(request.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+        EasyMock.expect(request.startAsync()).andReturn(asyncContext);
+        EasyMock.expect(request.getAsyncContext()).andReturn(asyncContext).anyTimes();
+        EasyMock.expect(request.isAsyncStarted()).andReturn(true).anyTimes();
+        EasyMock.expect(request.isAsyncSupported()).andReturn(true).anyTimes();
+        EasyMock.replay(request);
+
+        final AtomicReference<ScopedObject> refHolder = new AtomicReference<>();
+        filter.doFilter(request, null, (req, res) -> {
+            refHolder.set(getBean(ScopedObject.class));
+            ((HttpServletRequest) req).startAsync().start(() -> Assert.assertSame(refHolder.get(), getBean(ScopedObject.class)));
+        });
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+        EasyMock.verify(request);
+        // The wrapper registered the end listener, the filter must not add it again.
+        EasyMock.verify(asyncContext);
+
+        // Run the task on another thread, like the container would.
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread thread = new Thread(() -> {
+            try {
+                task.getValue().run();
+                Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+            }
+            catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        thread.start();
+        thread.join();
+        Assert.assertNull(failure.get());
+
+        // Completing the request ends the context.
+        final ThreadDelegatedContext ended = (ThreadDelegatedContext) context.getValue();
+        Assert.assertFalse(ended.isEnded());
+        EasyMock.reset(request);
+        EasyMock.expect(request.getAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATED_CONTEXT)).andReturn(ended).anyTimes();
+        request.removeAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATED_CONTEXT);
+        EasyMock.expectLastCall().once();
+        request.removeAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATING_SCOPE_ACTIVE);
+        EasyMock.expectLastCall().once();
+        EasyMock.replay(request);
+        listener.getValue().onComplete(new AsyncEvent(asyncContext));
+        EasyMock.verify(request);
+        Assert.assertTrue(ended.isEnded());
+    }
+
+    // Starting async processing on the unwrapped request still keeps the context until the request completes
+    @Test
+    public void testAsyncStartUnwrapped() throws Exception
+    {
+        final Capture<AsyncListener> listener = Capture.newInstance();
+        final AsyncContext asyncContext = EasyMock.createNiceMock(AsyncContext.class);
+        asyncContext.addListener(EasyMock.capture(listener));
+        EasyMock.expectLastCall().once();
+        EasyMock.replay(asyncContext);
+
+        final Capture<Object> context = Capture.newInstance();
+        final HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        request.setAttribute(EasyMock.eq(ThreadDelegatingScopeFilter.THREAD_DELEGATED_CONTEXT), EasyMock.capture(context));
+        EasyMock.expect(request.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+        EasyMock.expect(request.startAsync()).andReturn(asyncContext);
+        EasyMock.expect(request.getAsyncContext()).andReturn(asyncContext).anyTimes();
+        EasyMock.expect(request.isAsyncStarted()).andReturn(true).anyTimes();
+        EasyMock.expect(request.isAsyncSupported()).andReturn(true).anyTimes();
+        EasyMock.replay(request);
+
+        final AtomicReference<ScopedObject> refHolder = new AtomicReference<>();
+        filter.doFilter(request, null, (req, res) -> {
+            refHolder.set(getBean(ScopedObject.class));
+            request.startAsync();
+        });
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+        EasyMock.verify(request, asyncContext);
+
+        // The context is stored with the request and lives on until the request completes.
+        final ThreadDelegatedContext stored = (ThreadDelegatedContext) context.getValue();
+        Assert.assertFalse(stored.isEnded());
+        Assert.assertFalse(refHolder.get().isClosed());
+        EasyMock.reset(request);
+        EasyMock.expect(request.getAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATED_CONTEXT)).andReturn(stored).anyTimes();
+        EasyMock.replay(request);
+        listener.getValue().onComplete(new AsyncEvent(asyncContext));
+        Assert.assertTrue(stored.isEnded());
+        Assert.assertTrue(refHolder.get().isClosed());
+    }
+
+    // An async dispatch runs in the context stored with the request
+    @Test
+    public void testAsyncDispatch() throws Exception
+    {
+        final ThreadDelegatedContext context = ThreadDelegatedScope.SCOPE.getContext();
+        final ScopedObject scoped = getBean(ScopedObject.class);
+        ThreadDelegatedScope.SCOPE.changeScope(null);
+
+        final HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.expect(request.getDispatcherType()).andReturn(DispatcherType.ASYNC).anyTimes();
+        EasyMock.expect(request.getAttribute(ThreadDelegatingScopeFilter.THREAD_DELEGATED_CONTEXT)).andReturn(context).anyTimes();
+        // The request is still running, it must not be ended.
+        request.removeAttribute(EasyMock.anyString());
+        EasyMock.expectLastCall().andThrow(new AssertionError("ended")).anyTimes();
+        EasyMock.replay(request);
+
+        filter.doFilter(request, null, (req, res) -> {
+            Assert.assertSame(context, ThreadDelegatedScope.SCOPE.peekContext());
+            Assert.assertSame(scoped, getBean(ScopedObject.class));
+        });
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+    }
+
+    // Non-blocking read and write callbacks run in the context of the request
+    @Test
+    public void testNonBlockingListeners() throws Exception
+    {
+        final Capture<ReadListener> readListener = Capture.newInstance();
+        final ServletInputStream input = EasyMock.createNiceMock(ServletInputStream.class);
+        input.setReadListener(EasyMock.capture(readListener));
+        EasyMock.replay(input);
+        final Capture<WriteListener> writeListener = Capture.newInstance();
+        final ServletOutputStream output = EasyMock.createNiceMock(ServletOutputStream.class);
+        output.setWriteListener(EasyMock.capture(writeListener));
+        EasyMock.replay(output);
+
+        final Capture<Object> context = Capture.newInstance();
+        final HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        request.setAttribute(EasyMock.eq(ThreadDelegatingScopeFilter.THREAD_DELEGATED_CONTEXT), EasyMock.capture(context));
+        EasyMock.expect(request.getInputStream()).andReturn(input).anyTimes();
+        EasyMock.expect(request.isAsyncSupported()).andReturn(true).anyTimes();
+        EasyMock.expect(request.startAsync()).andReturn(EasyMock.createNiceMock(AsyncContext.class));
+        EasyMock.replay(request);
+        final HttpServletResponse response = EasyMock.createNiceMock(HttpServletResponse.class);
+        EasyMock.expect(response.getOutputStream()).andReturn(output).anyTimes();
+        EasyMock.replay(response);
+
+        final AtomicReference<ThreadDelegatedContext> seen = new AtomicReference<>();
+        filter.doFilter(request, response, (req, res) -> {
+            req.startAsync();
+            // The streams are wrapped once per request.
+            Assert.assertSame(req.getInputStream(), req.getInputStream());
+            Assert.assertSame(res.getOutputStream(), res.getOutputStream());
+            req.getInputStream().setReadListener(new ReadListener() {
+                @Override
+                public void onDataAvailable()
+                {
+                    seen.set(ThreadDelegatedScope.SCOPE.peekContext());
+                }
+
+                @Override
+                public void onAllDataRead()
+                {
+                }
+
+                @Override
+                public void onError(final Throwable t)
+                {
+                }
+            });
+            res.getOutputStream().setWriteListener(new WriteListener() {
+                @Override
+                public void onWritePossible()
+                {
+                    seen.set(ThreadDelegatedScope.SCOPE.peekContext());
+                }
+
+                @Override
+                public void onError(final Throwable t)
+                {
+                }
+            });
+        });
+
+        readListener.getValue().onDataAvailable();
+        Assert.assertSame(context.getValue(), seen.get());
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+
+        seen.set(null);
+        writeListener.getValue().onWritePossible();
+        Assert.assertSame(context.getValue(), seen.get());
+        Assert.assertNull(ThreadDelegatedScope.SCOPE.peekContext());
+    }
+
+    // Restarting async processing drops all listeners, the end listener adds itself again
+    @Test
+    public void testEndListenerRestart() throws Exception
+    {
+        final HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        EasyMock.replay(request);
+        final ThreadDelegatingScopeFilter.EndListener listener = new ThreadDelegatingScopeFilter.EndListener(request);
+        final AsyncContext asyncContext = EasyMock.createNiceMock(AsyncContext.class);
+        asyncContext.addListener(listener);
+        EasyMock.expectLastCall().once();
+        EasyMock.replay(asyncContext);
+
+        listener.onStartAsync(new AsyncEvent(asyncContext));
+        EasyMock.verify(asyncContext);
+    }
+
     private <T> T getBean(Class<T> cls)
     {
         return context.getAutowireCapableBeanFactory().getBean(cls);